@@ -33,6 +33,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -64,7 +65,7 @@ public class AccessMap {
     @Getter
     private Map<String, AccessChange> map = new HashMap<String, AccessChange>();
     @Getter
-    private Set<String> appliedMaps = new HashSet<String>();
+    private Set<String> appliedMaps = Collections.synchronizedSet(new HashSet<String>());
 
     public AccessMap() {
     }
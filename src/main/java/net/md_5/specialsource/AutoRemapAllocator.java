@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import net.md_5.specialsource.util.StringUtil;
+
+/**
+ * Hands out generated names to classes which have no mapping, for
+ * {@code --autoRemap}. Names are the prefix followed by a base 26 counter,
+ * skipping any name already used as a mapping target, and each class keeps
+ * the first name it was given.
+ *
+ * Allocation takes constant time: taken names are kept in a set rather than
+ * searched for in the class map, and the counter only ever moves forward.
+ * Every remapper can have its own allocator, which is safe to share between
+ * threads.
+ */
+public class AutoRemapAllocator {
+
+    private final Map<String, String> classes;
+    private final String prefix;
+    private final List<String> filter;
+    private final Map<String, String> allocated = new ConcurrentHashMap<String, String>();
+    private Set<String> taken;
+    private int takenFromClasses = -1;
+    private int nameIndex = 1;
+
+    /**
+     * @param classes Class mappings, whose target names are never handed out
+     * @param prefix Prepended to every generated name
+     * @param filter Only classes whose name contains one of these are given a
+     * name, or all classes if empty
+     */
+    public AutoRemapAllocator(Map<String, String> classes, String prefix, List<String> filter) {
+        this.classes = classes;
+        this.prefix = prefix;
+        this.filter = filter;
+    }
+
+    /**
+     * Get the generated name of a class, allocating one if needed.
+     *
+     * @return the generated name, or null if the class is filtered out
+     */
+    public String getName(String className) {
+        String name = allocated.get(className);
+        if (name != null) {
+            return name;
+        }
+        if (!matchesFilter(className)) {
+            return null;
+        }
+        return allocate(className);
+    }
+
+    private boolean matchesFilter(String className) {
+        if (filter.isEmpty()) {
+            return true;
+        }
+        for (String part : filter) {
+            if (className.contains(part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized String allocate(String className) {
+        String name = allocated.get(className);
+        if (name != null) {
+            return name;
+        }
+
+        // class mappings are normally all loaded before remapping, only rebuild if they changed
+        if (takenFromClasses != classes.size()) {
+            taken = new HashSet<String>(classes.values());
+            taken.addAll(allocated.values());
+            takenFromClasses = classes.size();
+        }
+
+        name = prefix + StringUtil.toBase26(nameIndex);
+        while (taken.contains(name)) {
+            name = prefix + StringUtil.toBase26(++nameIndex);
+        }
+        nameIndex++;
+
+        taken.add(name);
+        allocated.put(className, name);
+        return name;
+    }
+
+    /**
+     * All names handed out so far, by original class name.
+     */
+    public Map<String, String> getAllocated() {
+        return Collections.unmodifiableMap(new HashMap<String, String>(allocated));
+    }
+}
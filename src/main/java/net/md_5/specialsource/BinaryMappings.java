@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.google.common.base.Preconditions;
+import net.md_5.specialsource.transformer.MethodDescriptor;
+
+/**
+ * Precompiled binary form of a {@link JarMapping}. It is a faster format to
+ * parse than the text ones, as no lines have to be split or transformed and
+ * each distinct string is decoded only once, but it is still parsed in full
+ * into the mapping's own tables.
+ *
+ * The file is a pool of every string used, followed by lists of entries
+ * which refer to the strings by their index in the pool: packages (in the
+ * order they are matched), then classes, fields, methods and inheritance,
+ * each written in name order so the same mappings always give the same
+ * file. All numbers are big endian ints. Fields and methods also store their
+ * owner and descriptor after remapping, so that unused mappings can be
+ * reported as they would be from the text file.
+ */
+public class BinaryMappings {
+
+    private static final int MAGIC = 0x5353424d; // "SSBM"
+    private static final int VERSION = 1;
+
+    /**
+     * Check whether a file is a binary mapping file, rather than text
+     * mappings.
+     */
+    public static boolean isBinary(File file) throws IOException {
+        if (!file.isFile() || file.length() < 8) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Write the mappings, and optionally an inheritance map, to a binary
+     * mapping file.
+     *
+     * @param inheritanceMap Inheritance to include, or null
+     */
+    public static void write(JarMapping mapping, InheritanceMap inheritanceMap, File file) throws IOException {
+        Pool pool = new Pool();
+
+        List<String> packages = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : mapping.packages.entrySet()) {
+            packages.add(entry.getKey());
+            packages.add(entry.getValue());
+        }
+
+        List<String> classNames = new ArrayList<String>(mapping.classes.keySet());
+        Collections.sort(classNames);
+        List<String> classes = new ArrayList<String>();
+        for (String className : classNames) {
+            classes.add(className);
+            classes.add(mapping.classes.get(className));
+        }
+
+        List<String> fieldKeys = new ArrayList<String>(mapping.fields.keySet());
+        Collections.sort(fieldKeys);
+        List<String> fields = new ArrayList<String>();
+        for (String key : fieldKeys) {
+            int split = key.lastIndexOf('/');
+            String owner = key.substring(0, split);
+            String name = key.substring(split + 1);
+            int slot = mapping.fields.find(owner, name, null);
+            String targetOwner = mapping.fields.getTargetOwner(slot);
+
+            fields.add(owner);
+            fields.add(name);
+            fields.add(mapping.fields.getMapped(slot));
+            fields.add(targetOwner != null ? targetOwner : mapClass(mapping, owner));
+        }
+
+        List<String> methodKeys = new ArrayList<String>(mapping.methods.keySet());
+        Collections.sort(methodKeys);
+        List<String> methods = new ArrayList<String>();
+        MethodDescriptor descriptorMapper = new MethodDescriptor(mapping.packages, mapping.classes);
+        for (String key : methodKeys) {
+            int space = key.indexOf(' ');
+            int split = key.lastIndexOf('/', space);
+            String owner = key.substring(0, split);
+            String desc = key.substring(space + 1);
+            String name = key.substring(split + 1, space);
+            int slot = mapping.methods.find(owner, name, desc);
+            String targetOwner = mapping.methods.getTargetOwner(slot);
+
+            methods.add(owner);
+            methods.add(name);
+            methods.add(desc);
+            methods.add(mapping.methods.getMapped(slot));
+            methods.add(targetOwner != null ? targetOwner : mapClass(mapping, owner));
+            methods.add(targetOwner != null ? mapping.methods.getTargetDesc(slot) : descriptorMapper.transform(desc));
+        }
+
+        List<String> inheritance = new ArrayList<String>();
+        List<Integer> parentCounts = new ArrayList<Integer>();
+        if (inheritanceMap != null) {
+            List<String> inherited = new ArrayList<String>(inheritanceMap.getClassNames());
+            Collections.sort(inherited);
+            for (String className : inherited) {
+                List<String> parents = inheritanceMap.getParents(className);
+                inheritance.add(className);
+                inheritance.addAll(parents);
+                parentCounts.add(parents.size());
+            }
+        }
+
+        int[] packageIds = pool.add(packages);
+        int[] classIds = pool.add(classes);
+        int[] fieldIds = pool.add(fields);
+        int[] methodIds = pool.add(methods);
+        int[] inheritanceIds = pool.add(inheritance);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(pool.strings.size());
+            for (String string : pool.strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            writeTable(out, packageIds, 2);
+            writeTable(out, classIds, 2);
+            writeTable(out, fieldIds, 4);
+            writeTable(out, methodIds, 6);
+
+            out.writeInt(parentCounts.size());
+            int pos = 0;
+            for (int parentCount : parentCounts) {
+                out.writeInt(inheritanceIds[pos++]);
+                out.writeInt(parentCount);
+                for (int i = 0; i < parentCount; i++) {
+                    out.writeInt(inheritanceIds[pos++]);
+                }
+            }
+        }
+    }
+
+    private static String mapClass(JarMapping mapping, String className) {
+        String mapped = mapping.classes.get(className);
+        return mapped != null ? mapped : className;
+    }
+
+    private static void writeTable(DataOutputStream out, int[] ids, int columns) throws IOException {
+        out.writeInt(ids.length / columns);
+        for (int id : ids) {
+            out.writeInt(id);
+        }
+    }
+
+    /**
+     * Load a binary mapping file into a mapping. Any inheritance it contains
+     * is added to the mapping's inheritance map.
+     */
+    public static void read(File file, JarMapping mapping) throws IOException {
+        Preconditions.checkState(!mapping.isFrozen(), "Cannot load mappings into a frozen JarMapping");
+        long start = System.nanoTime();
+
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a binary mapping file: " + file);
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary mapping version " + version + " in " + file);
+            }
+
+            String[] pool = new String[in.getInt()];
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < pool.length; i++) {
+                int length = in.getInt();
+                if (length > bytes.length) {
+                    bytes = new byte[length];
+                }
+                in.get(bytes, 0, length);
+                pool[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+
+            for (int i = in.getInt(); i > 0; i--) {
+                String oldPackageName = pool[in.getInt()];
+                String newPackageName = pool[in.getInt()];
+                if (mapping.isExcludedPackage(oldPackageName)) {
+                    SpecialSource.log("Ignored PK: " + oldPackageName + " -> " + newPackageName);
+                    continue;
+                }
+                mapping.packages.put(oldPackageName, newPackageName);
+            }
+
+            for (int i = in.getInt(); i > 0; i--) {
+                String oldClassName = pool[in.getInt()];
+                String newClassName = pool[in.getInt()];
+                if (mapping.isExcludedPackage(oldClassName)) {
+                    SpecialSource.log("Ignored CL: " + oldClassName + " " + newClassName);
+                    continue;
+                }
+                String existing = mapping.classes.get(oldClassName);
+                if (existing != null && !existing.equals(newClassName)) {
+                    throw new IllegalArgumentException("Duplicate class mapping: " + oldClassName + " -> " + newClassName
+                            + " but already mapped to " + existing + " in " + file);
+                }
+                mapping.classes.put(oldClassName, newClassName);
+                mapping.unusedClass.put(oldClassName, newClassName);
+            }
+
+            for (int i = in.getInt(); i > 0; i--) {
+                String owner = pool[in.getInt()];
+                String name = pool[in.getInt()];
+                String mapped = pool[in.getInt()];
+                String newOwner = pool[in.getInt()];
+                if (mapping.isExcludedPackage(owner)) {
+                    SpecialSource.log("Ignored FD: " + owner + "/" + name + " -> " + mapped);
+                    continue;
+                }
+                String existing = mapping.fields.get(owner, name, null);
+                if (existing != null && !existing.equals(mapped)) {
+                    throw new IllegalArgumentException("Duplicate field mapping: " + owner + "/" + name + " ->" + mapped
+                            + " but already mapped to " + existing + " in " + file);
+                }
+                mapping.fields.put(owner, name, null, mapped, newOwner, null);
+            }
+
+            for (int i = in.getInt(); i > 0; i--) {
+                String owner = pool[in.getInt()];
+                String name = pool[in.getInt()];
+                String desc = pool[in.getInt()];
+                String mapped = pool[in.getInt()];
+                String newOwner = pool[in.getInt()];
+                String newDesc = pool[in.getInt()];
+                if (mapping.isExcludedPackage(owner)) {
+                    SpecialSource.log("Ignored MD: " + owner + "/" + name + " -> " + mapped);
+                    continue;
+                }
+                String existing = mapping.methods.get(owner, name, desc);
+                if (existing != null && !existing.equals(mapped)) {
+                    throw new IllegalArgumentException("Duplicate method mapping: " + owner + "/" + name + " " + desc + " ->" + mapped
+                            + " but already mapped to " + existing + " in " + file);
+                }
+                mapping.methods.put(owner, name, desc, mapped, newOwner, newDesc);
+            }
+
+            InheritanceMap inheritanceMap = mapping.getInheritanceMap();
+            for (int i = in.getInt(); i > 0; i--) {
+                String className = pool[in.getInt()];
+                List<String> parents = new ArrayList<String>();
+                for (int j = in.getInt(); j > 0; j--) {
+                    parents.add(pool[in.getInt()]);
+                }
+                inheritanceMap.setParents(className, parents);
+            }
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Corrupt binary mapping file: " + file, ex);
+        }
+
+        SpecialSource.log(String.format("Loaded binary mappings from %s in %.0fms", file.getName(), (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Strings of a binary mapping file, numbered in the order they are first
+     * added.
+     */
+    private static class Pool {
+
+        private final List<String> strings = new ArrayList<String>();
+        private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+        private int[] add(List<String> table) {
+            int[] result = new int[table.size()];
+            for (int i = 0; i < result.length; i++) {
+                String string = table.get(i);
+                Integer id = ids.get(string);
+                if (id == null) {
+                    id = strings.size();
+                    strings.add(string);
+                    ids.put(string, id);
+                }
+                result[i] = id;
+            }
+            return result;
+        }
+    }
+}
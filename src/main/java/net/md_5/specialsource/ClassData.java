@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * A class file read once, with views of it at increasing levels of detail:
+ * its header (super class and interfaces), a table of its members' access
+ * flags, and the full {@link ClassNode}. Each view is parsed the first time
+ * it is asked for. The full node is only softly held, as it is many times the
+ * size of the class file.
+ *
+ * The class file may itself be softly held, when it can be read again, so
+ * that the header and member views can be kept for long runs without keeping
+ * every class file too.
+ */
+public class ClassData {
+
+    private final byte[] bytes;
+    private final Supplier<byte[]> reader;
+    private final int size;
+    private SoftReference<byte[]> softBytes;
+    private final ClassNode source;
+    private volatile List<String> parents;
+    private volatile MemberIndex members;
+    private SoftReference<ClassNode> node;
+
+    /**
+     * Wrap the bytes of a class file.
+     */
+    public ClassData(byte[] bytes) {
+        this.bytes = bytes;
+        this.reader = null;
+        this.size = bytes.length;
+        this.source = null;
+    }
+
+    /**
+     * Wrap the bytes of a class file, which are only softly held, and read
+     * again when needed once the garbage collector has dropped them.
+     *
+     * @param bytes the class file
+     * @param reader reads the same class file again
+     */
+    public ClassData(byte[] bytes, Supplier<byte[]> reader) {
+        this.bytes = null;
+        this.reader = reader;
+        this.size = bytes.length;
+        this.softBytes = new SoftReference<byte[]>(bytes);
+        this.source = null;
+    }
+
+    /**
+     * Wrap an already parsed class, which is then held strongly.
+     */
+    public ClassData(ClassNode node) {
+        this.bytes = null;
+        this.reader = null;
+        this.size = 256 + 64 * (node.fields.size() + node.methods.size());
+        this.source = node;
+    }
+
+    /**
+     * Get the class file, or null if this was made from a node.
+     */
+    public byte[] getBytes() {
+        if (bytes != null || reader == null) {
+            return bytes;
+        }
+
+        synchronized (this) {
+            byte[] result = softBytes.get();
+            if (result == null) {
+                result = reader.get();
+                if (result == null) {
+                    throw new IllegalStateException("Class file can no longer be read");
+                }
+                softBytes = new SoftReference<byte[]>(result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Estimate the size of this class in bytes: that of its class file, or
+     * for a class made from a node, a rough figure from its member count.
+     */
+    public int estimateSize() {
+        return size;
+    }
+
+    /**
+     * Get the interfaces of this class followed by its super class, if it
+     * has one, reading only the class header.
+     */
+    public List<String> getParents() {
+        List<String> result = parents;
+        if (result == null) {
+            synchronized (this) {
+                result = parents;
+                if (result == null) {
+                    parents = result = readParents();
+                }
+            }
+        }
+        return result;
+    }
+
+    private List<String> readParents() {
+        String superName;
+        List<String> interfaces;
+        if (source != null) {
+            superName = source.superName;
+            interfaces = source.interfaces;
+        } else {
+            ClassReader cr = new ClassReader(getBytes());
+            superName = cr.getSuperName();
+            interfaces = Arrays.asList(cr.getInterfaces());
+        }
+
+        List<String> result = new ArrayList<String>(interfaces.size() + 1);
+        result.addAll(interfaces);
+        if (superName != null) {
+            result.add(superName);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Get the access flags of a field or method declared by this class,
+     * reading the member table without any code.
+     *
+     * @return the access flags, or null if there is no such member
+     */
+    public Integer getAccess(NodeType type, String name, String desc) {
+        MemberIndex result = members;
+        if (result == null) {
+            synchronized (this) {
+                result = members;
+                if (result == null) {
+                    members = result = (source != null) ? new MemberIndex(source) : new MemberIndex(getBytes());
+                }
+            }
+        }
+        return result.get(type, name, desc);
+    }
+
+    /**
+     * Get the fully parsed class. The node is shared, and must not be
+     * changed.
+     */
+    public synchronized ClassNode getNode() {
+        if (source != null) {
+            return source;
+        }
+
+        ClassNode result = (node == null) ? null : node.get();
+        if (result == null) {
+            result = new ClassNode();
+            new ClassReader(getBytes()).accept(result, 0);
+            node = new SoftReference<ClassNode>(result);
+        }
+        return result;
+    }
+
+    /**
+     * Access flags of the fields and methods of a class, keyed by name and
+     * descriptor.
+     */
+    private static class MemberIndex {
+
+        private final Map<String, Integer> fields = new HashMap<>();
+        private final Map<String, Integer> methods = new HashMap<>();
+
+        private MemberIndex(ClassNode node) {
+            // The first declaration wins, as with a linear scan
+            for (FieldNode f : node.fields) {
+                fields.putIfAbsent(f.name + " " + f.desc, f.access);
+            }
+            for (MethodNode m : node.methods) {
+                methods.putIfAbsent(m.name + " " + m.desc, m.access);
+            }
+        }
+
+        private MemberIndex(byte[] bytes) {
+            new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+                @Override
+                public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                    fields.putIfAbsent(name + " " + descriptor, access);
+                    return null;
+                }
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    methods.putIfAbsent(name + " " + descriptor, access);
+                    return null;
+                }
+            }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        }
+
+        private Integer get(NodeType type, String name, String desc) {
+            switch (type) {
+                case FIELD:
+                    return fields.get(name + " " + desc);
+                case METHOD:
+                    return methods.get(name + " " + desc);
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -30,12 +30,16 @@ package net.md_5.specialsource;
 
 import java.util.Stack;
 
+import net.md_5.specialsource.repo.ClassRepo;
+import net.md_5.specialsource.repo.RuntimeRepo;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.commons.SignatureRemapper;
 import org.objectweb.asm.signature.SignatureVisitor;
 
 public abstract class CustomRemapper extends Remapper {
-    private String currentClassName;
+    // Per thread, as one remapper is shared by all classes remapped in parallel
+    private final ThreadLocal<String> currentClassName = new ThreadLocal<>();
     @Override
     public String mapMethodName(String owner, String name, String desc) {
         return mapMethodName(owner, name, desc, 0);
@@ -62,6 +66,14 @@ public abstract class CustomRemapper extends Remapper {
 
     }
 
+    /**
+     * Called with the implementation method of each lambda metafactory call
+     * site and its remapped counterpart.
+     */
+    public void addLambdaMapping(Handle implMethod, Handle mappedImplMethod) {
+
+    }
+
     public String mapRecordComponentName(String owner, String name, String descriptor) {
         return this.mapFieldName(owner, name, descriptor);
     }
@@ -69,14 +81,31 @@ public abstract class CustomRemapper extends Remapper {
     @Override
     public String mapSignature(String signature, boolean typeSignature) {
         // JDT decorates some lambdas with this and SignatureReader chokes on it
-        if (signature != null && signature.contains("!*") || (SpecialSource.kill_sig && !SpecialSource.killSigExclude.contains(this.currentClassName))) {
+        if (isSignatureKilled(signature)) {
             return null;
         }
         return super.mapSignature(signature, typeSignature);
     }
 
+    /**
+     * Check whether a signature is dropped rather than remapped, either
+     * because it cannot be parsed or because kill_sig applies to the current
+     * class.
+     */
+    protected boolean isSignatureKilled(String signature) {
+        return signature != null && signature.contains("!*") || (SpecialSource.kill_sig && !SpecialSource.killSigExclude.contains(this.currentClassName.get()));
+    }
+
+    /**
+     * Get the repository members of classes from outside the jar being
+     * remapped are looked up in.
+     */
+    protected ClassRepo getRuntimeRepo() {
+        return RuntimeRepo.getInstance();
+    }
+
     public void setCurrentClassName(String currentClassName) {
-        this.currentClassName = currentClassName;
+        this.currentClassName.set(currentClassName);
     }
 
     @Override
@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import net.md_5.specialsource.provider.InheritanceProvider;
+import net.md_5.specialsource.util.SymbolTable;
+
+/**
+ * Flattened inheritance hierarchy. For every class it holds the class itself
+ * followed by all of its ancestors, in the order members are resolved by
+ * {@link JarMapping#tryClimb}: depth first through the parents in the order
+ * they are given, with each class listed once.
+ *
+ * Class names are interned and the lists are packed into a single int array,
+ * so an index is cheap to keep for a whole jar and safe to share between
+ * threads.
+ */
+public class HierarchyIndex {
+
+    private final SymbolTable classes;
+    private final int[] offsets; // start of each class's list, by class id
+    private final int[] ancestors;
+
+    private HierarchyIndex(SymbolTable classes, int[] offsets, int[] ancestors) {
+        this.classes = classes;
+        this.offsets = offsets;
+        this.ancestors = ancestors;
+    }
+
+    /**
+     * Build an index for the given classes, and all of their ancestors.
+     *
+     * @param inheritanceProvider Source of the direct parents of each class
+     * @param classNames Internal names of the classes to index
+     */
+    public static HierarchyIndex build(InheritanceProvider inheritanceProvider, Collection<String> classNames) {
+        Builder builder = new Builder(inheritanceProvider);
+        for (String className : classNames) {
+            builder.flatten(className);
+        }
+
+        int total = 0;
+        for (int i = 1; i < builder.flattened.size(); i++) {
+            total += builder.flattened.get(i).length;
+        }
+
+        int[] offsets = new int[builder.flattened.size() + 1];
+        int[] ancestors = new int[total];
+        int pos = 0;
+        for (int i = 1; i < builder.flattened.size(); i++) {
+            offsets[i] = pos;
+            int[] list = builder.flattened.get(i);
+            System.arraycopy(list, 0, ancestors, pos, list.length);
+            pos += list.length;
+        }
+        offsets[offsets.length - 1] = pos;
+
+        return new HierarchyIndex(builder.classes, offsets, ancestors);
+    }
+
+    /**
+     * Get the id of an indexed class, or -1 if it is not in the index.
+     */
+    public int find(String className) {
+        return classes.find(className);
+    }
+
+    /**
+     * Position of the first entry (the class itself) of a class's list.
+     */
+    public int start(int classId) {
+        return offsets[classId];
+    }
+
+    /**
+     * Position after the last entry of a class's list.
+     */
+    public int end(int classId) {
+        return offsets[classId + 1];
+    }
+
+    public String getAncestor(int position) {
+        return classes.get(ancestors[position]);
+    }
+
+    /**
+     * Number of classes in this index.
+     */
+    public int size() {
+        return classes.size();
+    }
+
+    private static class Builder {
+
+        private final SymbolTable classes = new SymbolTable();
+        private final List<int[]> flattened = new ArrayList<int[]>();
+        private final InheritanceProvider inheritanceProvider;
+
+        private Builder(InheritanceProvider inheritanceProvider) {
+            this.inheritanceProvider = inheritanceProvider;
+            flattened.add(null); // id 0 is never assigned
+        }
+
+        private int[] flatten(String className) {
+            int id = classes.intern(className);
+            if (id < flattened.size()) {
+                return flattened.get(id);
+            }
+            // Stands in while the parents are flattened, in case of a cycle
+            flattened.add(new int[]{id});
+
+            Set<Integer> list = new LinkedHashSet<Integer>();
+            list.add(id);
+            Collection<String> parents = inheritanceProvider.getParents(className);
+            if (parents != null) {
+                for (String parent : parents) {
+                    for (int ancestor : flatten(parent)) {
+                        list.add(ancestor);
+                    }
+                }
+            }
+
+            int[] result = new int[list.size()];
+            int i = 0;
+            for (int ancestor : list) {
+                result[i++] = ancestor;
+            }
+            flattened.set(id, result);
+            return result;
+        }
+    }
+}
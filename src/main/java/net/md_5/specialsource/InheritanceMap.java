@@ -37,11 +37,18 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Cache of direct superclass/interfaces per class. Safe for concurrent use,
+ * parent lists are replaced rather than modified once set.
+ */
 public class InheritanceMap implements InheritanceProvider {
 
-    private final Map<String, ArrayList<String>> inheritanceMap = new HashMap<String, ArrayList<String>>();
+    private final Map<String, ArrayList<String>> inheritanceMap = new ConcurrentHashMap<String, ArrayList<String>>();
     public static final InheritanceMap EMPTY = new InheritanceMap();
+    private final AtomicInteger modCount = new AtomicInteger();
 
     /**
      * Generate an inheritance map for the given classes
@@ -134,12 +141,41 @@ public class InheritanceMap implements InheritanceProvider {
         return inheritanceMap.get(className);
     }
 
+    /**
+     * Names of all classes with known parents.
+     */
+    public Set<String> getClassNames() {
+        return Collections.unmodifiableSet(inheritanceMap.keySet());
+    }
+
     public void setParents(String className, Collection<String> parents) {
-        if (parents == null) {
-            inheritanceMap.put(className, new ArrayList<String>());
-        } else {
-            inheritanceMap.put(className, new ArrayList<String>(parents));
-        }
+        inheritanceMap.put(className, parents == null ? new ArrayList<String>() : new ArrayList<String>(parents));
+        modCount.incrementAndGet();
+    }
+
+    /**
+     * Record the parents of a class not yet in this map, as looked up from an
+     * inheritance provider. This only fills in what the provider would have
+     * answered anyway, so unlike {@link #setParents} it is not counted as a
+     * change.
+     */
+    void addParents(String className, Collection<String> parents) {
+        inheritanceMap.putIfAbsent(className, parents == null ? new ArrayList<String>() : new ArrayList<String>(parents));
+    }
+
+    /**
+     * Number of changes made to this map, for invalidating derived caches.
+     */
+    public int getModCount() {
+        return modCount.get();
+    }
+
+    /**
+     * Flatten every class in this map into a {@link HierarchyIndex}. Classes
+     * not in this map are treated as having no parents.
+     */
+    public HierarchyIndex flatten() {
+        return HierarchyIndex.build(this, inheritanceMap.keySet());
     }
 
     public int size() {
@@ -28,24 +28,31 @@
  */
 package net.md_5.specialsource;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
-import org.objectweb.asm.ClassReader;
+import net.md_5.specialsource.util.ZipReader;
 import org.objectweb.asm.tree.ClassNode;
 
 /**
@@ -53,19 +60,24 @@ import org.objectweb.asm.tree.ClassNode;
  * jar's main class, as well as the ability to get the {@link InputStream} of a
  * class file, and speedy lookups to see if the jar contains the specified
  * class.
+ *
+ * Files may instead be memory-mapped and read through a {@link ZipReader},
+ * which is cheaper for the many random reads of classes made while looking up
+ * inheritance and members.
  */
 @ToString
 @EqualsAndHashCode
 @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
 public class Jar implements Closeable {
 
-    private final List<JarFile> jarFiles;
+    private final List<Archive> archives;
     @Getter
     private final String main;
     @Getter
     private final String filename;
-    private final LinkedHashMap<String, JarFile> jarForResource;
-    private final Set<String> contains = new HashSet<String>();
+    private final LinkedHashMap<String, Archive> jarForResource;
+    private final Set<String> contains = Sets.newConcurrentHashSet();
+    private final Map<String, ClassData> classData = new ConcurrentHashMap<String, ClassData>();
 
     /**
      * Check if this jar contains the given class. Takes the internal name of a
@@ -92,10 +104,9 @@ public class Jar implements Closeable {
      * @param name The name of the resource
      * @return true Whether a resource with the given name exists
      */
-    @SuppressWarnings("resource") // closed when the this Jar is closed
     public boolean containsResource(String name) {
-        JarFile jarFile = jarForResource.get(name);
-        return jarFile != null && jarFile.getEntry(name) != null;
+        Archive archive = jarForResource.get(name);
+        return archive != null && archive.containsEntry(name);
     }
 
     /**
@@ -105,15 +116,36 @@ public class Jar implements Closeable {
      * @return
      * @throws IOException
      */
-    @SuppressWarnings("resource") // closed when the this Jar is closed
     public InputStream getResource(String name) throws IOException {
-        JarFile jarFile = jarForResource.get(name);
-        if (jarFile == null) {
-            return null;
-        }
+        Archive archive = jarForResource.get(name);
+        return archive == null ? null : archive.getInputStream(name);
+    }
+
+    /**
+     * Get the uncompressed contents of a file in this jar. From a mapped file,
+     * stored entries are read-only slices of the map, and compressed ones are
+     * inflated when asked for.
+     *
+     * @param name The name of the resource
+     * @return the contents, or null if there is no such resource
+     * @throws IOException
+     */
+    public ByteBuffer getResourceBuffer(String name) throws IOException {
+        Archive archive = jarForResource.get(name);
+        return archive == null ? null : archive.getBuffer(name);
+    }
 
-        ZipEntry e = jarFile.getEntry(name);
-        return e == null ? null : jarFile.getInputStream(e);
+    /**
+     * Get a resource in this jar as it is stored, for copying without
+     * decompressing it.
+     *
+     * @param name The name of the resource
+     * @return the stored entry, or null if there is no such resource, or the
+     * jar it is in cannot be read raw
+     */
+    public ZipReader.Entry getRawResource(String name) {
+        Archive archive = jarForResource.get(name);
+        return archive == null ? null : archive.getRawEntry(name);
     }
 
     /**
@@ -132,31 +164,96 @@ public class Jar implements Closeable {
         return inputStream;
     }
 
+    /**
+     * Get the class file of a class, read and cached the first time it is
+     * asked for, with its parsed views. Takes the internal name of a class
+     * (/). The header and member views stay cached until this jar is closed,
+     * but the class file is only softly held, and read again if it has been
+     * dropped.
+     *
+     * @param clazz
+     * @return the class, or null if it isn't in the jar
+     */
+    public ClassData getClassData(String clazz) {
+        ClassData data = classData.get(clazz);
+        if (data != null) {
+            return data;
+        }
+        if (!containsResource(clazz + ".class")) {
+            return null;
+        }
+
+        try {
+            // Computed at most once, though other classes in the same bin wait for the read
+            data = classData.computeIfAbsent(clazz, c -> {
+                try {
+                    byte[] bytes = readBytes(c + ".class");
+                    return bytes == null ? null : new ClassData(bytes, () -> {
+                        try {
+                            return readBytes(c + ".class");
+                        } catch (IOException ex) {
+                            throw new RuntimeException(c, ex);
+                        }
+                    });
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            // Wrap this in a runtime exception so it can conform easily to interfaces
+            throw new RuntimeException(clazz, ex.getCause());
+        }
+
+        if (data != null) {
+            contains.add(clazz);
+        }
+        return data;
+    }
+
+    /**
+     * Read the class file of a class, without caching it. Takes the internal
+     * name of a class (/).
+     *
+     * @param clazz
+     * @return the class file, or null if the class isn't in the jar
+     * @throws IOException
+     */
+    public byte[] getClassBytes(String clazz) throws IOException {
+        byte[] bytes = readBytes(clazz + ".class");
+
+        if (bytes != null) {
+            contains.add(clazz);
+        }
+        return bytes;
+    }
+
+    private byte[] readBytes(String name) throws IOException {
+        ByteBuffer buffer = getResourceBuffer(name);
+        if (buffer == null) {
+            return null;
+        }
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
     /**
      * Get the {@link ClassNode} object corresponding to this class. Takes the
-     * internal name of a class (/)
+     * internal name of a class (/). The node is shared, and must not be
+     * changed.
      *
      * @param clazz
      * @return
      */
     public ClassNode getNode(String clazz) {
-        // No luck, so lets try read it
-        try (InputStream is = getClass(clazz)) {
-            if (is != null) {
-                ClassReader cr = new ClassReader(is);
-                // Process it
-                ClassNode node = new ClassNode();
-                cr.accept(node, 0);
-
-                return node;
-            }
-        } catch (IOException ex) {
-            // Wrap this in a runtime exception so it can conform easily to interfaces
-            throw new RuntimeException(clazz, ex);
-        }
+        ClassData data = getClassData(clazz);
 
-        // We get here if the class isn't in the jar
-        return null;
+        // We get null here if the class isn't in the jar
+        return data == null ? null : data.getNode();
     }
 
     /**
@@ -172,17 +269,17 @@ public class Jar implements Closeable {
      * Read and collect jar files so resources can override those in earlier
      * files.
      *
-     * @param jarFiles
+     * @param archives
      * @return
      */
-    private static LinkedHashMap<String, JarFile> collectJarFiles(List<JarFile> jarFiles) {
-        LinkedHashMap<String, JarFile> jarForResource = new LinkedHashMap<String, JarFile>();
+    private static LinkedHashMap<String, Archive> collectJarFiles(List<Archive> archives) {
+        LinkedHashMap<String, Archive> jarForResource = new LinkedHashMap<String, Archive>();
         // For all jars
-        for (JarFile jarFile : jarFiles) {
+        for (Archive archive : archives) {
             // Get all entries
-            for (Enumeration<JarEntry> entr = jarFile.entries(); entr.hasMoreElements();) {
+            for (String name : archive.getEntryNames()) {
                 // Add to list
-                jarForResource.put(entr.nextElement().getName(), jarFile);
+                jarForResource.put(name, archive);
             }
             // continue through each jar file, overwriting subsequent classes in multiple jars ("jar mods")
         }
@@ -230,24 +327,38 @@ public class Jar implements Closeable {
      * @throws IOException
      */
     public static Jar init(List<File> files) throws IOException {
+        return init(files, false);
+    }
+
+    /**
+     * Read a new jar instance from the given list of files, optionally
+     * memory-mapping them. Files which cannot be mapped, such as Zip64
+     * archives, are read as {@link JarFile}s either way.
+     *
+     * @param files
+     * @param mapped
+     * @return
+     * @throws IOException
+     */
+    public static Jar init(List<File> files, boolean mapped) throws IOException {
         Preconditions.checkArgument(files.size() > 0, "Jar init requires at least one file!");
 
         // Save some time by resizing these to their target size
-        List<JarFile> jarFiles = new ArrayList<JarFile>(files.size());
+        List<Archive> archives = new ArrayList<Archive>(files.size());
         List<String> filenames = new ArrayList<String>(files.size());
 
-        // Populate file names and JarFiles
+        // Populate file names and archives
         for (File file : files) {
             filenames.add(file.getName());
-            jarFiles.add(new JarFile(file, false));
+            archives.add(openArchive(file, mapped));
         }
 
-        LinkedHashMap<String, JarFile> jarForResource = collectJarFiles(jarFiles);
+        LinkedHashMap<String, Archive> jarForResource = collectJarFiles(archives);
         String fileName = Joiner.on(" + ").join(filenames);
 
         String main = null;
         // For each jar
-        for (JarFile jar : jarFiles) {
+        for (Archive jar : archives) {
             // Get main
             String newMain = getMainClassName(jar.getManifest());
             // If they have a main
@@ -263,7 +374,19 @@ public class Jar implements Closeable {
         }
 
         // Return the new all encompassing jar instance. The file name will be the sum of all names.
-        return new Jar(jarFiles, main, fileName, jarForResource);
+        return new Jar(archives, main, fileName, jarForResource);
+    }
+
+    private static Archive openArchive(File file, boolean mapped) throws IOException {
+        if (mapped) {
+            try {
+                return new MappedArchive(new ZipReader(file));
+            } catch (ZipException ex) {
+                System.err.println("[Warning] Not mapping " + file.getName() + ": " + ex.getMessage());
+            }
+        }
+
+        return new JarFileArchive(new JarFile(file, false));
     }
 
     /**
@@ -274,11 +397,149 @@ public class Jar implements Closeable {
      */
     @Override
     public void close() throws IOException {
-        for (JarFile jarFile : jarFiles) {
-            jarFile.close();
+        for (Archive archive : archives) {
+            archive.close();
         }
-        jarFiles.clear();
+        archives.clear();
         jarForResource.clear();
         contains.clear();
+        classData.clear();
+    }
+
+    /**
+     * One of the files making up a jar.
+     */
+    private interface Archive extends Closeable {
+
+        Iterable<String> getEntryNames();
+
+        boolean containsEntry(String name);
+
+        InputStream getInputStream(String name) throws IOException;
+
+        ByteBuffer getBuffer(String name) throws IOException;
+
+        ZipReader.Entry getRawEntry(String name);
+
+        Manifest getManifest() throws IOException;
+    }
+
+    /**
+     * A file read through {@link JarFile}, which opens a {@link ZipReader}
+     * only once raw entries are asked for.
+     */
+    @RequiredArgsConstructor
+    private static class JarFileArchive implements Archive {
+
+        private final JarFile jarFile;
+        private Optional<ZipReader> rawReader;
+
+        @Override
+        public Iterable<String> getEntryNames() {
+            List<String> names = new ArrayList<String>();
+            for (Enumeration<JarEntry> entr = jarFile.entries(); entr.hasMoreElements();) {
+                names.add(entr.nextElement().getName());
+            }
+            return names;
+        }
+
+        @Override
+        public boolean containsEntry(String name) {
+            return jarFile.getEntry(name) != null;
+        }
+
+        @Override
+        public InputStream getInputStream(String name) throws IOException {
+            ZipEntry e = jarFile.getEntry(name);
+            return e == null ? null : jarFile.getInputStream(e);
+        }
+
+        @Override
+        public ByteBuffer getBuffer(String name) throws IOException {
+            try (InputStream is = getInputStream(name)) {
+                return is == null ? null : ByteBuffer.wrap(ByteStreams.toByteArray(is));
+            }
+        }
+
+        @Override
+        public synchronized ZipReader.Entry getRawEntry(String name) {
+            if (rawReader == null) {
+                try {
+                    rawReader = Optional.of(new ZipReader(new File(jarFile.getName())));
+                } catch (IOException ex) {
+                    rawReader = Optional.empty();
+                }
+            }
+            return rawReader.isPresent() ? rawReader.get().getEntry(name) : null;
+        }
+
+        @Override
+        public Manifest getManifest() throws IOException {
+            return jarFile.getManifest();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            jarFile.close();
+            if (rawReader != null && rawReader.isPresent()) {
+                rawReader.get().close();
+            }
+        }
+    }
+
+    /**
+     * A memory-mapped file.
+     */
+    @RequiredArgsConstructor
+    private static class MappedArchive implements Archive {
+
+        private final ZipReader reader;
+
+        @Override
+        public Iterable<String> getEntryNames() {
+            return reader.getEntryNames();
+        }
+
+        @Override
+        public boolean containsEntry(String name) {
+            return reader.getEntry(name) != null;
+        }
+
+        @Override
+        public InputStream getInputStream(String name) throws IOException {
+            ByteBuffer buffer = getBuffer(name);
+            if (buffer == null) {
+                return null;
+            }
+            if (buffer.hasArray()) {
+                return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public ByteBuffer getBuffer(String name) throws IOException {
+            ZipReader.Entry entry = reader.getEntry(name);
+            return entry == null ? null : entry.getData();
+        }
+
+        @Override
+        public ZipReader.Entry getRawEntry(String name) {
+            return reader.getEntry(name);
+        }
+
+        @Override
+        public Manifest getManifest() throws IOException {
+            try (InputStream is = getInputStream(JarFile.MANIFEST_NAME)) {
+                return is == null ? null : new Manifest(is);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
     }
 }
@@ -29,121 +29,99 @@
 package net.md_5.specialsource;
 
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import net.md_5.specialsource.provider.InheritanceProvider;
 import net.md_5.specialsource.provider.JarProvider;
-import net.md_5.specialsource.repo.ClassRepo;
-import net.md_5.specialsource.repo.JarRepo;
 import net.md_5.specialsource.util.NoDupeList;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.FieldNode;
-import org.objectweb.asm.tree.MethodNode;
 
 public class JarComparer extends ClassVisitor {
 
-    private final MethodReferenceFinder methodVisitor = new MethodReferenceFinder();
     public final Jar jar;
-    private final ClassRepo jarRepo;
     private final InheritanceProvider inheritance;
-    private String myName;
+    // Declaring class of members looked up through each class, or "" if none
+    private final Map<String, String> declarers = new ConcurrentHashMap<String, String>();
     public int iterDepth;
     public NoDupeList<String> classes = new NoDupeList<String>();
     public NoDupeList<Ownable> fields = new NoDupeList<Ownable>();
     public NoDupeList<Ownable> methods = new NoDupeList<Ownable>();
+    // Applies what is found straight to the lists above
+    private final Sink direct = new Sink() {
+        @Override
+        public void addClass(String name) {
+            classes.add(name);
+        }
 
-    private void visitType(Type type) {
-        // FIXME: Scan arrays too!
-        if (type.getSort() == Type.OBJECT) {
-            String name = type.getInternalName();
-            if (jar.containsClass(name)) {
-                classes.add(name);
-            }
+        @Override
+        public void add(Ownable member) {
+            (member.type == NodeType.FIELD ? fields : methods).add(member);
         }
-        if (type.getSort() == Type.ARRAY) {
-            visitType(type.getElementType());
+
+        @Override
+        public void remove(Ownable member) {
+            (member.type == NodeType.FIELD ? fields : methods).remove(member);
         }
-    }
+    };
 
     public JarComparer(Jar jar) {
         super(Opcodes.ASM7);
         this.jar = jar;
-        this.jarRepo = new JarRepo(jar);
         this.inheritance = new JarProvider(jar);
+        this.cv = new Scanner(direct);
     }
 
-    @Override
-    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        myName = name;
-        // FIXME: Scan the super class too!
-        for (String implement : interfaces) {
-            if (jar.containsClass(implement)) {
-                classes.add(implement);
+    /**
+     * Scan a class without changing this comparer, recording the classes and
+     * members it refers to so they can be {@link #merge merged} later. Scans
+     * of different classes may run on different threads at once.
+     */
+    public Scan scan(ClassReader reader) {
+        Scan scan = new Scan();
+        reader.accept(new Scanner(scan), 0);
+        return scan;
+    }
+
+    /**
+     * Apply a scan to this comparer, exactly as if the class had been
+     * visited directly at this point.
+     */
+    public void merge(Scan scan) {
+        for (int i = 0; i < scan.ops.size(); i++) {
+            Object value = scan.ops.get(i);
+            if (value instanceof String) {
+                direct.addClass((String) value);
+            } else if (scan.removals.get(i)) {
+                direct.remove((Ownable) value);
+            } else {
+                direct.add((Ownable) value);
             }
         }
-        if (jar.containsClass(superName)) {
-            classes.add(superName);
-        }
     }
 
-    @Override
-    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
-        Ownable field = new Ownable(NodeType.FIELD, myName, name, desc, access);
-        fields.add(field);
-        return null; // No need to get more info about a field!
+    public String getDeclarer(String currentParent, Ownable node) {
+        return getDeclarer(currentParent, node, direct);
     }
 
-    @Override
-    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-        Ownable method = new Ownable(NodeType.METHOD, myName, name, desc, access);
-
-        String newN = getDeclarer(myName, method);
-        if (newN != null) {
-            method = new Ownable(method.type, newN, method.name, method.descriptor, method.access);
+    private String getDeclarer(String currentParent, Ownable node, Sink sink) {
+        ClassData data = jar.getClassData(currentParent);
+        if (data == null) {
+            return null;
         }
-        methods.add(method);
-
-        // FIXME: Scan return types too!
-        for (Type t : Type.getArgumentTypes(desc)) {
-            visitType(t);
-        }
-        visitType(Type.getReturnType(desc));
-        return methodVisitor;
-    }
-
-    public String getDeclarer(String currentParent, Ownable node) {
 
         String newParent = null;
-
-        ClassNode n = jarRepo.findClass(currentParent);
-        if (n == null) {
-            return newParent;
-        }
-        switch (node.type) {
-            case FIELD:
-                for (FieldNode field : n.fields) {
-                    if (field.name.equals(node.name) && field.desc.equals(node.descriptor)) {
-                        newParent = currentParent;
-                        fields.remove(new Ownable(NodeType.FIELD, currentParent, node.name, node.descriptor, node.access));
-                        break;
-                    }
-                }
-                break;
-            case METHOD:
-                for (MethodNode method : n.methods) {
-                    if (method.name.equals(node.name) && method.desc.equals(node.descriptor) && (method.access == -1 || (!Modifier.isPrivate(method.access) && !Modifier.isStatic(method.access)))) {
-                        newParent = currentParent;
-                        methods.remove(new Ownable(NodeType.METHOD, currentParent, node.name, node.descriptor, node.access));
-                        methods.remove(node);
-                        break;
-                    }
-                }
-                break;
+        if (declares(data, node.type, node.name, node.descriptor)) {
+            newParent = currentParent;
+            removeDeclared(newParent, node, sink);
         }
 
         if ((node.owner.equals(newParent) || newParent == null) && (node.access == -1 || (!Modifier.isPrivate(node.access) && !Modifier.isStatic(node.access)))) {
@@ -152,8 +130,9 @@ public class JarComparer extends ClassVisitor {
             if (parents != null) {
                 // climb the inheritance tree
                 for (String parent : parents) {
-                    newParent = getDeclarer(parent, node);
+                    newParent = getInheritedDeclarer(parent, node.type, node.name, node.descriptor);
                     if (newParent != null) {
+                        removeDeclared(newParent, node, sink);
                         return newParent;
                     }
                 }
@@ -163,37 +142,191 @@ public class JarComparer extends ClassVisitor {
         return newParent;
     }
 
-    private class MethodReferenceFinder extends MethodVisitor {
+    private static void removeDeclared(String declarer, Ownable node, Sink sink) {
+        sink.remove(new Ownable(node.type, declarer, node.name, node.descriptor, node.access));
+        if (node.type == NodeType.METHOD) {
+            sink.remove(node);
+        }
+    }
 
-        public MethodReferenceFinder() {
-            super(Opcodes.ASM7);
+    /**
+     * Find the class a member is inherited from, starting with the given
+     * class and climbing depth first through its parents. Each result is
+     * cached, so every part of the hierarchy is only searched once per member.
+     */
+    private String getInheritedDeclarer(String owner, NodeType type, String name, String desc) {
+        String key = type.name() + " " + owner + " " + name + " " + desc;
+        String cached = declarers.get(key);
+        if (cached != null) {
+            return cached.isEmpty() ? null : cached;
         }
 
-        @Override
-        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
-            if (jar.containsClass(owner)) {
-                classes.add(owner);
+        String declarer = null;
+        ClassData data = jar.getClassData(owner);
+        if (data != null) {
+            if (declares(data, type, name, desc)) {
+                declarer = owner;
+            } else {
+                Collection<String> parents = inheritance.getParents(owner);
+                if (parents != null) {
+                    for (String parent : parents) {
+                        declarer = getInheritedDeclarer(parent, type, name, desc);
+                        if (declarer != null) {
+                            break;
+                        }
+                    }
+                }
             }
         }
 
+        declarers.put(key, declarer == null ? "" : declarer);
+        return declarer;
+    }
+
+    /**
+     * Check whether a class declares a field, or a method which can be
+     * inherited.
+     */
+    private static boolean declares(ClassData data, NodeType type, String name, String desc) {
+        Integer access = data.getAccess(type, name, desc);
+        if (access == null) {
+            return false;
+        }
+        return type != NodeType.METHOD || access == -1 || (!Modifier.isPrivate(access) && !Modifier.isStatic(access));
+    }
+
+    /**
+     * Receives the classes and members found while visiting a class.
+     */
+    private interface Sink {
+
+        void addClass(String name);
+
+        void add(Ownable member);
+
+        void remove(Ownable member);
+    }
+
+    /**
+     * The classes and members found in a single class, in the order found.
+     */
+    public static class Scan implements Sink {
+
+        private final List<Object> ops = new ArrayList<Object>();
+        private final BitSet removals = new BitSet();
+
+        @Override
+        public void addClass(String name) {
+            ops.add(name);
+        }
+
+        @Override
+        public void add(Ownable member) {
+            ops.add(member);
+        }
+
         @Override
-        public void visitLdcInsn(Object cst) {
-            if (cst instanceof Type) {
-                visitType((Type) cst);
+        public void remove(Ownable member) {
+            removals.set(ops.size());
+            ops.add(member);
+        }
+    }
+
+    private class Scanner extends ClassVisitor {
+
+        private final MethodReferenceFinder methodVisitor = new MethodReferenceFinder();
+        private final Sink sink;
+        private String myName;
+
+        private Scanner(Sink sink) {
+            super(Opcodes.ASM7);
+            this.sink = sink;
+        }
+
+        private void visitType(Type type) {
+            // FIXME: Scan arrays too!
+            if (type.getSort() == Type.OBJECT) {
+                String name = type.getInternalName();
+                if (jar.containsClass(name)) {
+                    sink.addClass(name);
+                }
+            }
+            if (type.getSort() == Type.ARRAY) {
+                visitType(type.getElementType());
             }
         }
 
         @Override
-        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-            if (jar.containsClass(owner)) {
-                classes.add(owner);
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            myName = name;
+            // FIXME: Scan the super class too!
+            for (String implement : interfaces) {
+                if (jar.containsClass(implement)) {
+                    sink.addClass(implement);
+                }
+            }
+            if (jar.containsClass(superName)) {
+                sink.addClass(superName);
             }
         }
 
         @Override
-        public void visitTypeInsn(int opcode, String type) {
-            if (jar.containsClass(type)) {
-                classes.add(type);
+        public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+            Ownable field = new Ownable(NodeType.FIELD, myName, name, desc, access);
+            sink.add(field);
+            return null; // No need to get more info about a field!
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            Ownable method = new Ownable(NodeType.METHOD, myName, name, desc, access);
+
+            String newN = getDeclarer(myName, method, sink);
+            if (newN != null) {
+                method = new Ownable(method.type, newN, method.name, method.descriptor, method.access);
+            }
+            sink.add(method);
+
+            // FIXME: Scan return types too!
+            for (Type t : Type.getArgumentTypes(desc)) {
+                visitType(t);
+            }
+            visitType(Type.getReturnType(desc));
+            return methodVisitor;
+        }
+
+        private class MethodReferenceFinder extends MethodVisitor {
+
+            public MethodReferenceFinder() {
+                super(Opcodes.ASM7);
+            }
+
+            @Override
+            public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+                if (jar.containsClass(owner)) {
+                    sink.addClass(owner);
+                }
+            }
+
+            @Override
+            public void visitLdcInsn(Object cst) {
+                if (cst instanceof Type) {
+                    visitType((Type) cst);
+                }
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                if (jar.containsClass(owner)) {
+                    sink.addClass(owner);
+                }
+            }
+
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+                if (jar.containsClass(type)) {
+                    sink.addClass(type);
+                }
             }
         }
     }
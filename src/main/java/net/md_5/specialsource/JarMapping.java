@@ -31,6 +31,8 @@ package net.md_5.specialsource;
 import net.md_5.specialsource.util.FileLocator;
 import net.md_5.specialsource.transformer.MavenShade;
 import net.md_5.specialsource.util.Pair;
+import net.md_5.specialsource.util.PrefixMap;
+import net.md_5.specialsource.util.SymbolTable;
 import net.md_5.specialsource.writer.CompactSearge;
 import net.md_5.specialsource.writer.Searge;
 import net.md_5.specialsource.writer.MappingWriter;
@@ -42,26 +44,79 @@ import net.md_5.specialsource.transformer.MappingTransformer;
 import java.io.*;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingMap;
+import lombok.RequiredArgsConstructor;
 import org.objectweb.asm.commons.Remapper;
 
 public class JarMapping {
 
-    public final LinkedHashMap<String, String> packages = new LinkedHashMap<>();
-    public final Map<String, String> classes = new HashMap<>();
-    public final Map<String, String> fields = new HashMap<>();
-    public final Map<String, String> methods = new HashMap<>();
-    private final Map<String, Pair<Ownable>> unusedMethod = new HashMap<>();
-    private final Map<String,Pair<Ownable>> unusedField = new HashMap<>();
-    private final Map<String,String> unusedClass = new HashMap<>();
+    public final PrefixMap<String> packages = new PrefixMap<>();
+    public final Map<String, String> classes = new ClassTable();
+    private final SymbolTable classSymbols = new SymbolTable();
+    private final SymbolTable nameSymbols = new SymbolTable();
+    public final MemberMap fields = new MemberMap(classSymbols, nameSymbols, null);
+    public final MemberMap methods = new MemberMap(classSymbols, nameSymbols, new SymbolTable());
+    // Used fields and methods are marked in their member maps, used classes are removed here
+    final Map<String,String> unusedClass = new ConcurrentHashMap<>();
     private InheritanceMap inheritanceMap = new InheritanceMap();
     private InheritanceProvider fallbackInheritanceProvider = null;
     private Set<String> excludedPackages = new HashSet<>();
     private String currentClass = null;
+    private int freezes = 0;
+    // Stands in for "no mapping" in the climb cache
+    private static final String NO_MAPPING = new String();
+    // Most tokens on any mapping line (srg MD:), with room for stray spaces
+    private static final int MAX_TOKENS = 8;
+    private volatile ClimbCache climbCache;
+    private final AtomicLong climbCacheHits = new AtomicLong();
+    private final AtomicLong climbCacheMisses = new AtomicLong();
+    private volatile IndexedHierarchy hierarchyIndex;
 
     public JarMapping() {
     }
 
+    /**
+     * Freeze the mapping tables. No further mappings may be loaded once
+     * frozen, and the package, class, field and method tables become
+     * read-only, which allows the lookup methods to be called by any number
+     * of remapping threads at once.
+     *
+     * Freezes nest: the mapping stays frozen until each call has been matched
+     * by a call to {@link #unfreeze()}.
+     */
+    public synchronized void freeze() {
+        if (freezes++ == 0) {
+            setTablesReadOnly(true);
+        }
+    }
+
+    /**
+     * Undo one call to {@link #freeze()}, allowing mappings to be loaded again
+     * once every freeze has been undone.
+     */
+    public synchronized void unfreeze() {
+        Preconditions.checkState(freezes > 0, "JarMapping is not frozen");
+        if (--freezes == 0) {
+            setTablesReadOnly(false);
+        }
+    }
+
+    public synchronized boolean isFrozen() {
+        return freezes > 0;
+    }
+
+    private void setTablesReadOnly(boolean readOnly) {
+        packages.setReadOnly(readOnly);
+        ((ClassTable) classes).setReadOnly(readOnly);
+        fields.setReadOnly(readOnly);
+        methods.setReadOnly(readOnly);
+    }
+
 
     /**
      * Set the inheritance map used for caching superclass/interfaces. This call
@@ -71,6 +126,10 @@ public class JarMapping {
         this.inheritanceMap = inheritanceMap;
     }
 
+    public InheritanceMap getInheritanceMap() {
+        return inheritanceMap;
+    }
+
     /**
      * Set the inheritance provider to be consulted if the inheritance map has
      * no information on the requested class (results will be cached in the
@@ -89,7 +148,7 @@ public class JarMapping {
         excludedPackages.add(packageName);
     }
 
-    private boolean isExcludedPackage(String desc) {
+    boolean isExcludedPackage(String desc) {
         for (String packageName : excludedPackages) {
             if (desc.startsWith(packageName)) {
                 return true;
@@ -105,32 +164,36 @@ public class JarMapping {
             searge.addClassMap(stringStringEntry.getKey(),stringStringEntry.getValue());
         }
 
-        for (Map.Entry<String, Pair<Ownable>> stringPairEntry : this.unusedField.entrySet()) {
-            searge.addFieldMap(stringPairEntry.getValue().first,stringPairEntry.getValue().second);
+        for (Pair<Ownable> unusedField : fields.getUnused()) {
+            searge.addFieldMap(unusedField.first, unusedField.second);
         }
-        for (Map.Entry<String, Pair<Ownable>> stringPairEntry : this.unusedMethod.entrySet()) {
-            searge.addMethodMap(stringPairEntry.getValue().first,stringPairEntry.getValue().second);
+        for (Pair<Ownable> unusedMethod : methods.getUnused()) {
+            searge.addMethodMap(unusedMethod.first, unusedMethod.second);
         }
 
         return searge;
     }
 
+    /**
+     * @deprecated use {@link #tryClimb(NodeType, String, String, String, int)},
+     * which does not need the name and descriptor joined into one string
+     */
+    @Deprecated
     public String tryClimb(Map<String, String> map, NodeType type, String owner, String name, int access) {
-        String key = owner + "/" + name;
+        if (map == fields && type == NodeType.FIELD) {
+            return tryClimb(type, owner, name, null, access);
+        }
+        int space = name.indexOf(' ');
+        if (map == methods && type == NodeType.METHOD && space != -1) {
+            return tryClimb(type, owner, name.substring(0, space), name.substring(space + 1), access);
+        }
 
-        String mapped = map.get(key);
+        // Any other map is climbed by its string keys
+        String mapped = map.get(owner + "/" + name);
         if (mapped == null && (access == -1 || (!Modifier.isPrivate(access) && !Modifier.isStatic(access)))) {
-            Collection<String> parents = null;
-
-            if (inheritanceMap.hasParents(owner)) {
-                parents = inheritanceMap.getParents(owner);
-            } else if (fallbackInheritanceProvider != null) {
-                parents = fallbackInheritanceProvider.getParents(owner);
-                inheritanceMap.setParents(owner, parents);
-            }
+            Collection<String> parents = getParents(owner);
 
             if (parents != null) {
-                // climb the inheritance tree
                 for (String parent : parents) {
                     mapped = tryClimb(map, type, parent, name, access);
                     if (mapped != null) {
@@ -140,18 +203,174 @@ public class JarMapping {
             }
         }
 
-            switch (type) {
-                case FIELD:
-                    this.unusedField.remove(key);
-                    break;
-                case METHOD:
-                    this.unusedMethod.remove(key);
-                    break;
+        return mapped;
+    }
+
+    /**
+     * Find the new name of a field or method, climbing the inheritance tree of
+     * its owner if it is not mapped directly and could be inherited. The
+     * result of each climb is cached until the mappings or inheritance
+     * change.
+     *
+     * @param desc Method descriptor, ignored for fields
+     * @return the new name, or null if the member is not mapped
+     */
+    public String tryClimb(NodeType type, String owner, String name, String desc, int access) {
+        MemberMap map = (type == NodeType.FIELD) ? fields : methods;
+        if (!map.mayContain(name, desc)) {
+            return null;
+        }
+
+        if (access == -1 || (!Modifier.isPrivate(access) && !Modifier.isStatic(access))) {
+            HierarchyIndex index = getHierarchyIndex();
+            int classId = (index == null) ? -1 : index.find(owner);
+            if (classId == -1) {
+                return climb(map, getClimbCache(), owner, name, desc, map.getMemberKey(name, desc));
+            }
+
+            for (int i = index.start(classId); i < index.end(classId); i++) {
+                int slot = map.find(index.getAncestor(i), name, desc);
+                if (slot != -1) {
+                    map.markUsed(slot);
+                    return map.getMapped(slot);
+                }
             }
+            return null;
+        }
+
+        int slot = map.find(owner, name, desc);
+        if (slot == -1) {
+            return null;
+        }
+        map.markUsed(slot);
+        return map.getMapped(slot);
+    }
 
+    /**
+     * @param memberKey Key of the name and descriptor from the member map, as
+     * the climb cache is keyed by symbol ids rather than strings. Field and
+     * method keys never collide, as only methods have a descriptor id.
+     */
+    private String climb(MemberMap map, ClimbCache cache, String owner, String name, String desc, long memberKey) {
+        long key = cache.getKey(owner, memberKey);
+        String cached = cache.get(key);
+        if (cached != null) {
+            climbCacheHits.incrementAndGet();
+            return cached == NO_MAPPING ? null : cached;
+        }
+        climbCacheMisses.incrementAndGet();
+
+        String mapped = null;
+        int slot = map.find(owner, name, desc);
+        if (slot != -1) {
+            map.markUsed(slot);
+            mapped = map.getMapped(slot);
+        } else {
+            Collection<String> parents = getParents(owner);
+
+            if (parents != null) {
+                // climb the inheritance tree
+                for (String parent : parents) {
+                    mapped = climb(map, cache, parent, name, desc, memberKey);
+                    if (mapped != null) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        cache.put(key, mapped == null ? NO_MAPPING : mapped);
         return mapped;
     }
 
+    /**
+     * Get the climb cache, starting a new one if anything it was computed
+     * from has changed since.
+     */
+    private ClimbCache getClimbCache() {
+        ClimbCache cache = climbCache;
+        if (cache == null || !cache.isValidFor(this)) {
+            climbCache = cache = new ClimbCache(this);
+        }
+        return cache;
+    }
+
+    /**
+     * Flatten the inheritance of the given classes, and their ancestors, so
+     * that climbs from them walk a precomputed list instead of recursing
+     * through the inheritance map. The index is dropped once the inheritance
+     * map or fallback provider change.
+     *
+     * @param classNames Internal names of the classes to index
+     * @return the new index
+     */
+    public HierarchyIndex buildHierarchyIndex(Collection<String> classNames) {
+        HierarchyIndex index = HierarchyIndex.build(new InheritanceProvider() {
+            @Override
+            public Collection<String> getParents(String className) {
+                return JarMapping.this.getParents(className);
+            }
+        }, classNames);
+        setHierarchyIndex(index);
+        return index;
+    }
+
+    /**
+     * Set a precomputed hierarchy index to climb, or null to always climb
+     * the inheritance map. The index must agree with the current inheritance
+     * map, and is dropped once it or the fallback provider change.
+     */
+    public void setHierarchyIndex(HierarchyIndex index) {
+        hierarchyIndex = (index == null) ? null : new IndexedHierarchy(this, index);
+    }
+
+    private HierarchyIndex getHierarchyIndex() {
+        IndexedHierarchy indexed = hierarchyIndex;
+        if (indexed == null) {
+            return null;
+        }
+        if (!indexed.isValidFor(this)) {
+            hierarchyIndex = null;
+            return null;
+        }
+        return indexed.index;
+    }
+
+    /**
+     * Number of inheritance climbs answered from the cache.
+     */
+    public long getClimbCacheHits() {
+        return climbCacheHits.get();
+    }
+
+    /**
+     * Number of inheritance climbs which had to be resolved.
+     */
+    public long getClimbCacheMisses() {
+        return climbCacheMisses.get();
+    }
+
+    /**
+     * Look up the parents of a class in the inheritance map, falling back to
+     * (and caching the result of) the fallback inheritance provider. Safe to
+     * call from several remapping threads at once, although two threads may
+     * both consult the fallback provider for the same class.
+     */
+    private Collection<String> getParents(String owner) {
+        List<String> cached = inheritanceMap.getParents(owner);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (fallbackInheritanceProvider == null) {
+            return null;
+        }
+
+        Collection<String> parents = fallbackInheritanceProvider.getParents(owner);
+        inheritanceMap.addParents(owner, parents);
+        return parents;
+    }
+
     public void removeUnusedClass(String key){
         this.unusedClass.remove(key);
     }
@@ -229,6 +448,11 @@ public class JarMapping {
     }
 
     public void loadMappings(File file) throws IOException {
+        if (BinaryMappings.isBinary(file)) {
+            BinaryMappings.read(file, this);
+            return;
+        }
+
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             loadMappings(reader, null, null, false);
         }
@@ -236,8 +460,8 @@ public class JarMapping {
 
     /**
      *
-     * @param filename A filename of a .srg/.csrg or an MCP directory of
-     * .srg+.csv, local or remote
+     * @param filename A filename of a .srg/.csrg, a binary mapping file (see
+     * {@link BinaryMappings}) or an MCP directory of .srg+.csv, local or remote
      * @param reverse Swap input and output mappings
      * @param numericSrgNames When reading mapping directory, load numeric "srg"
      * instead obfuscated names
@@ -273,7 +497,17 @@ public class JarMapping {
                 throw new IllegalArgumentException("loadMappings(" + filename + "): numeric only supported on directories, not files");
             }
 
-            try (BufferedReader reader = new BufferedReader(new FileReader(FileLocator.getFile(filename)))) {
+            File file = FileLocator.getFile(filename);
+            if (BinaryMappings.isBinary(file)) {
+                if (reverse || inputTransformer != null || outputTransformer != null) {
+                    throw new IllegalArgumentException("loadMappings(" + filename + "): binary mappings cannot be reversed or relocated");
+                }
+
+                BinaryMappings.read(file, this);
+                return;
+            }
+
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
                 loadMappings(reader, inputTransformer, outputTransformer, reverse);
             }
         }
@@ -290,6 +524,7 @@ public class JarMapping {
      * @throws IOException
      */
     public void loadMappings(BufferedReader reader, MappingTransformer inputTransformer, MappingTransformer outputTransformer, boolean reverse) throws IOException {
+        Preconditions.checkState(!isFrozen(), "Cannot load mappings into a frozen JarMapping");
         if (inputTransformer == null) {
             inputTransformer = MavenShade.IDENTITY;
         }
@@ -297,7 +532,22 @@ public class JarMapping {
             outputTransformer = MavenShade.IDENTITY;
         }
 
-        List<String> lines = new ArrayList<>();
+        long start = System.nanoTime();
+        int lineCount = 0;
+        String[] tokens = new String[MAX_TOKENS];
+
+        //Gather class mappings here so that we can support reversing csrg/tsrg.
+        final Map<String, String> clsMap = new HashMap<>();
+        // We use a Remapper so that we don't have to duplicate the logic of remapping method descriptors.
+        Remapper reverseMapper = new Remapper() {
+            @Override
+            public String map(String cls) {
+                return clsMap.getOrDefault(cls, cls);
+            }
+        };
+        // csrg/tsrg field and method lines may refer to classes mapped further down, so they wait until the end
+        List<String> deferred = new ArrayList<>();
+
         String line;
         while ((line = reader.readLine()) != null) {
             int commentIndex = line.indexOf('#');
@@ -307,69 +557,73 @@ public class JarMapping {
             if (line.isEmpty()) {
                 continue;
             }
-            lines.add(line);
-        }
-
-        ProgressMeter meter = new ProgressMeter(lines.size() * 2, "Loading mappings... %2.0f%%");
+            lineCount++;
 
-        //Gather class mappings here so that we can support reversing csrg/tsrg.
-        final Map<String, String> clsMap = new HashMap<>();
-        for (String l : lines) {
-            if (l.contains(":")) {
-                if (!l.startsWith("CL:")) {
-                    continue;
+            if (line.indexOf(':') != -1) {
+                // standard srg
+                parseSrgLine(line, tokens, tokenize(line, tokens), inputTransformer, outputTransformer, reverse);
+            } else if (line.charAt(0) == '\t') {
+                //Tsrg format, identical to Csrg, except the field and method lines start with \t and should use the last class the was parsed.
+                if (this.currentClass == null) {
+                    throw new IOException("Invalid tsrg file, tsrg field/method line before class line: " + line);
                 }
-                String[] tokens = l.split(" ");
-                unusedClass.put(tokens[0], tokens[1]);
-                clsMap.put(tokens[0], tokens[1]);
+                deferred.add(currentClass + " " + line.substring(1));
             } else {
-                if (l.startsWith("\t")) {
-                    continue;
+                // better 'compact' srg format
+                int count = tokenize(line, tokens);
+                if (count == 2) {
+                    clsMap.put(tokens[0], tokens[1]);
+                    parseCsrgLine(line, tokens, count, inputTransformer, outputTransformer, reverse, reverseMapper);
+                } else {
+                    deferred.add(line);
                 }
-                String[] tokens = l.split(" ");
-                unusedClass.put(tokens[0], tokens[1]);
-                clsMap.put(tokens[0], tokens[1]);
             }
-            meter.makeProgress();
         }
 
-        // We use a Remapper so that we don't have to duplicate the logic of remapping method descriptors.
-        Remapper reverseMapper = new Remapper() {
-            @Override
-            public String map(String cls) {
-                return clsMap.getOrDefault(cls, cls);
-            }
-        };
-
-        for (String l : lines) {
-            if (l.contains(":")) {
-                // standard srg
-                parseSrgLine(l, inputTransformer, outputTransformer, reverse);
-            } else {
-                // better 'compact' srg format
-                parseCsrgLine(l, inputTransformer, outputTransformer, reverse, reverseMapper);
-            }
-            meter.makeProgress();
+        for (String member : deferred) {
+            parseCsrgLine(member, tokens, tokenize(member, tokens), inputTransformer, outputTransformer, reverse, reverseMapper);
         }
 
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        SpecialSource.log(String.format("Loaded %d mapping lines in %.2fs (%.0f lines/sec)", lineCount, elapsed / 1e9, lineCount * 1e9 / elapsed));
         currentClass = null;
     }
 
     /**
-     * Parse a 'csrg' mapping format line and populate the data structures
+     * Split a mapping line on single spaces into a reused array, as
+     * {@code line.split(" ")} would. Tokens which do not fit in the array are
+     * counted but not stored.
+     *
+     * @return the number of tokens
      */
-    private void parseCsrgLine(String line, MappingTransformer inputTransformer, MappingTransformer outputTransformer, boolean reverse, Remapper reverseMap) throws IOException {
-        //Tsrg format, identical to Csrg, except the field and method lines start with \t and should use the last class the was parsed.
-        if (line.startsWith("\t")) {
-            if (this.currentClass == null) {
-                throw new IOException("Invalid tsrg file, tsrg field/method line before class line: " + line);
+    private static int tokenize(String line, String[] tokens) {
+        int count = 0;
+        int start = 0;
+        int end;
+        while ((end = line.indexOf(' ', start)) != -1) {
+            if (count < tokens.length) {
+                tokens[count] = line.substring(start, end);
             }
-            line = currentClass + " " + line.substring(1);
+            count++;
+            start = end + 1;
+        }
+        if (count < tokens.length) {
+            tokens[count] = line.substring(start);
         }
+        count++;
 
-        String[] tokens = line.split(" ");
+        // trailing empty tokens are dropped, like String.split
+        while (count > 0 && count <= tokens.length && tokens[count - 1].isEmpty()) {
+            count--;
+        }
+        return count;
+    }
 
-        if (tokens.length == 2) {
+    /**
+     * Parse a 'csrg' mapping format line and populate the data structures
+     */
+    private void parseCsrgLine(String line, String[] tokens, int count, MappingTransformer inputTransformer, MappingTransformer outputTransformer, boolean reverse, Remapper reverseMap) throws IOException {
+        if (count == 2) {
             String oldClassName = inputTransformer.transformClassName(tokens[0]);
             String newClassName = outputTransformer.transformClassName(tokens[1]);
 
@@ -390,7 +644,7 @@ public class JarMapping {
                     currentClass = tokens[0];
                 }
             }
-        } else if (tokens.length == 3) {
+        } else if (count == 3) {
             String oldClassName = inputTransformer.transformClassName(tokens[0]);
             String oldFieldName = inputTransformer.transformFieldName(tokens[0], tokens[1]);
             String newFieldName = outputTransformer.transformFieldName(tokens[0], tokens[2]);
@@ -407,14 +661,9 @@ public class JarMapping {
                 oldFieldName = temp;
             }
 
-            String key = oldClassName + "/" + oldFieldName;
-            //Add to the unused
-            unusedField.put(key,new Pair<>(
-                    new Ownable(NodeType.FIELD,oldClassName,oldFieldName,"",0),
-                    new Ownable(NodeType.FIELD,reverseMap.map(oldClassName),newFieldName,"",0)));
-
-            fields.put(key, newFieldName);
-        } else if (tokens.length == 4) {
+            // The remapped owner is kept for reporting the field if it goes unused
+            fields.put(oldClassName, oldFieldName, null, newFieldName, reverseMap.map(oldClassName), null);
+        } else if (count == 4) {
             String oldClassName = inputTransformer.transformClassName(tokens[0]);
             String oldMethodName = inputTransformer.transformMethodName(tokens[0], tokens[1], tokens[2]);
             String oldMethodDescriptor = inputTransformer.transformMethodDescriptor(tokens[2]);
@@ -433,13 +682,9 @@ public class JarMapping {
                 oldMethodName = temp;
             }
 
-            String key = oldClassName + "/" + oldMethodName + " " + oldMethodDescriptor;
-            unusedMethod.put(key,new Pair<>(
-                    new Ownable(NodeType.METHOD,oldClassName,oldMethodName,oldMethodDescriptor,0),
-                    new Ownable(NodeType.METHOD,reverseMap.map(oldClassName),newMethodName,reverseMap.mapMethodDesc(oldMethodDescriptor),0)));
-            methods.put(key, newMethodName);
+            methods.put(oldClassName, oldMethodName, oldMethodDescriptor, newMethodName, reverseMap.map(oldClassName), reverseMap.mapMethodDesc(oldMethodDescriptor));
         } else {
-            throw new IOException("Invalid csrg file line, token count " + tokens.length + " unexpected in " + line);
+            throw new IOException("Invalid csrg file line, token count " + count + " unexpected in " + line);
         }
     }
 
@@ -447,9 +692,11 @@ public class JarMapping {
      * Parse a standard 'srg' mapping format line and populate the data
      * structures
      */
-    private void parseSrgLine(String line, MappingTransformer inputTransformer, MappingTransformer outputTransformer, boolean reverse) throws IOException {
-        String[] tokens = line.split(" ");
+    private void parseSrgLine(String line, String[] tokens, int count, MappingTransformer inputTransformer, MappingTransformer outputTransformer, boolean reverse) throws IOException {
         String kind = tokens[0];
+        if (count < ("MD:".equals(kind) ? 5 : 3)) {
+            throw new IllegalArgumentException("Unable to parse srg file, missing tokens in line=" + line);
+        }
 
         switch (kind) {
             case "CL:": {
@@ -547,15 +794,13 @@ public class JarMapping {
                     return;
                 }
 
-                String oldEntry = oldClassName + "/" + oldFieldName;
-                if (fields.containsKey(oldEntry) && !newFieldName.equals(fields.get(oldEntry))) {
-                    throw new IllegalArgumentException("Duplicate field mapping: " + oldEntry + " ->" + newFieldName
-                            + " but already mapped to " + fields.get(oldEntry) + " in line=" + line);
+                String existing = fields.get(oldClassName, oldFieldName, null);
+                if (existing != null && !newFieldName.equals(existing)) {
+                    throw new IllegalArgumentException("Duplicate field mapping: " + oldClassName + "/" + oldFieldName + " ->" + newFieldName
+                            + " but already mapped to " + existing + " in line=" + line);
                 }
-                //Add to the unused groups
-                unusedField.put(oldEntry,new Pair<>(new Ownable(NodeType.FIELD,oldClassName,oldFieldName,"",0),new Ownable(NodeType.FIELD,newClassName,newFieldName,"",0)));
 
-                fields.put(oldEntry, newFieldName);
+                fields.put(oldClassName, oldFieldName, null, newFieldName, newClassName, null);
                 break;
             }
             case "MD:": {
@@ -594,18 +839,13 @@ public class JarMapping {
                     return;
                 }
 
-                String oldEntry = oldClassName + "/" + oldMethodName + " " + oldMethodDescriptor;
-                if (methods.containsKey(oldEntry) && !newMethodName.equals(methods.get(oldEntry))) {
-                    throw new IllegalArgumentException("Duplicate method mapping: " + oldEntry + " ->" + newMethodName
-                            + " but already mapped to " + methods.get(oldEntry) + " in line=" + line);
+                String existing = methods.get(oldClassName, oldMethodName, oldMethodDescriptor);
+                if (existing != null && !newMethodName.equals(existing)) {
+                    throw new IllegalArgumentException("Duplicate method mapping: " + oldClassName + "/" + oldMethodName + " " + oldMethodDescriptor + " ->" + newMethodName
+                            + " but already mapped to " + existing + " in line=" + line);
                 }
 
-                //Add to the unused
-                unusedMethod.put(oldEntry,new Pair<>(
-                        new Ownable(NodeType.METHOD,oldClassName,oldMethodName,oldMethodDescriptor,0),
-                        new Ownable(NodeType.METHOD,newClassName,newMethodName,newMethodDescriptor,0)));
-
-                methods.put(oldEntry, newMethodName);
+                methods.put(oldClassName, oldMethodName, oldMethodDescriptor, newMethodName, newClassName, newMethodDescriptor);
                 break;
             }
             default:
@@ -647,20 +887,18 @@ public class JarMapping {
         for (int i = 0; i < oldJar.fields.size(); i++) {
             Ownable oldField = oldJar.fields.get(i);
             Ownable newField = newJar.fields.get(i);
-            String key = oldField.owner + "/" + oldField.name;
-            fields.put(key, newField.name);
+            fields.put(oldField.owner, oldField.name, null, newField.name);
 
             if (full || !oldField.name.equals(newField.name)) {
                 srgWriter.addFieldMap(oldField, newField);
             }
         }
+        MethodDescriptor methodDescriptorTransformer = new MethodDescriptor(null, classes);
         for (int i = 0; i < oldJar.methods.size(); i++) {
             Ownable oldMethod = oldJar.methods.get(i);
             Ownable newMethod = newJar.methods.get(i);
-            String key = oldMethod.owner + "/" + oldMethod.name + " " + oldMethod.descriptor;
-            methods.put(key, newMethod.name);
+            methods.put(oldMethod.owner, oldMethod.name, oldMethod.descriptor, newMethod.name);
 
-            MethodDescriptor methodDescriptorTransformer = new MethodDescriptor(null, classes);
             String oldDescriptor = methodDescriptorTransformer.transform(oldMethod.descriptor);
 
             if (full || !(oldMethod.name + " " + oldDescriptor).equals(newMethod.name + " " + newMethod.descriptor)) {
@@ -683,4 +921,121 @@ public class JarMapping {
         jarMapping.inheritanceMap = this.inheritanceMap;
         return jarMapping;
     }
+
+    /**
+     * Results of inheritance climbs, along with the state of the mappings and
+     * inheritance they were resolved against.
+     *
+     * Results are kept in a fixed size table indexed by the hash of their
+     * packed key, so a hit allocates nothing and a newer result simply
+     * replaces an older one in the same slot. Entries are immutable, so
+     * threads racing on a slot can lose a result but never see a mixed one.
+     */
+    private static class ClimbCache {
+
+        private static final int SIZE = 1 << 16;
+        private final ClimbResult[] results = new ClimbResult[SIZE];
+        // Owners climbed through need not be in any mapping, so get their own ids
+        private final Map<String, Integer> ownerIds = new ConcurrentHashMap<>();
+        private final AtomicInteger nextOwnerId = new AtomicInteger(1);
+        private final int fieldsVersion;
+        private final int methodsVersion;
+        private final InheritanceMap inheritanceMap;
+        private final int inheritanceVersion;
+        private final InheritanceProvider fallbackInheritanceProvider;
+
+        private ClimbCache(JarMapping mapping) {
+            this.fieldsVersion = mapping.fields.getModCount();
+            this.methodsVersion = mapping.methods.getModCount();
+            this.inheritanceMap = mapping.inheritanceMap;
+            this.inheritanceVersion = mapping.inheritanceMap.getModCount();
+            this.fallbackInheritanceProvider = mapping.fallbackInheritanceProvider;
+        }
+
+        /**
+         * @return the key of a member of the given owner, or -1 if it cannot
+         * be cached
+         */
+        private long getKey(String owner, long memberKey) {
+            if (memberKey == -1) {
+                return -1;
+            }
+            Integer id = ownerIds.get(owner);
+            if (id == null) {
+                id = ownerIds.computeIfAbsent(owner, o -> nextOwnerId.getAndIncrement());
+            }
+            return id > MemberMap.MAX_OWNER_ID ? -1 : MemberMap.withOwner(memberKey, id);
+        }
+
+        private String get(long key) {
+            if (key == -1) {
+                return null;
+            }
+            ClimbResult result = results[MemberMap.hash(key) & (SIZE - 1)];
+            return (result != null && result.key == key) ? result.mapped : null;
+        }
+
+        private void put(long key, String mapped) {
+            if (key != -1) {
+                results[MemberMap.hash(key) & (SIZE - 1)] = new ClimbResult(key, mapped);
+            }
+        }
+
+        private boolean isValidFor(JarMapping mapping) {
+            return fieldsVersion == mapping.fields.getModCount()
+                    && methodsVersion == mapping.methods.getModCount()
+                    && inheritanceMap == mapping.inheritanceMap
+                    && inheritanceVersion == mapping.inheritanceMap.getModCount()
+                    && fallbackInheritanceProvider == mapping.fallbackInheritanceProvider;
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class ClimbResult {
+
+        private final long key;
+        private final String mapped;
+    }
+
+    /**
+     * A hierarchy index, along with the inheritance it was flattened from.
+     */
+    private static class IndexedHierarchy {
+
+        private final HierarchyIndex index;
+        private final InheritanceMap inheritanceMap;
+        private final int inheritanceVersion;
+        private final InheritanceProvider fallbackInheritanceProvider;
+
+        private IndexedHierarchy(JarMapping mapping, HierarchyIndex index) {
+            this.index = index;
+            this.inheritanceMap = mapping.inheritanceMap;
+            this.inheritanceVersion = mapping.inheritanceMap.getModCount();
+            this.fallbackInheritanceProvider = mapping.fallbackInheritanceProvider;
+        }
+
+        private boolean isValidFor(JarMapping mapping) {
+            return inheritanceMap == mapping.inheritanceMap
+                    && inheritanceVersion == mapping.inheritanceMap.getModCount()
+                    && fallbackInheritanceProvider == mapping.fallbackInheritanceProvider;
+        }
+    }
+
+    /**
+     * Class table which can be made read-only while the mapping is frozen.
+     */
+    private static class ClassTable extends ForwardingMap<String, String> {
+
+        private final Map<String, String> classes = new HashMap<>();
+        private volatile Map<String, String> delegate = classes;
+
+        @Override
+        protected Map<String, String> delegate() {
+            return delegate;
+        }
+
+        private void setReadOnly(boolean readOnly) {
+            delegate = readOnly ? Collections.unmodifiableMap(classes) : classes;
+        }
+    }
 }
@@ -30,22 +30,39 @@ package net.md_5.specialsource;
 
 import java.io.*;
 import java.util.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.io.ByteStreams;
 import com.sun.istack.internal.Nullable;
+import lombok.RequiredArgsConstructor;
+import net.md_5.specialsource.repo.CachingRepo;
 import net.md_5.specialsource.repo.ClassRepo;
 import net.md_5.specialsource.repo.JarRepo;
-import net.md_5.specialsource.util.StringUtil;
+import net.md_5.specialsource.repo.RuntimeRepo;
+import net.md_5.specialsource.util.PrefixMap;
+import net.md_5.specialsource.util.PrefixTrie;
+import net.md_5.specialsource.util.ZipReader;
+import net.md_5.specialsource.util.ZipWriter;
 import net.md_5.specialsource.writer.Searge;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.tree.ClassNode;
 import static org.objectweb.asm.ClassWriter.*;
 
 public class JarRemapper extends CustomRemapper {
-    private static int autoRemapNameIndex = 1;
-    public static final Map<String,String> autoRemapClasses = new HashMap<>();
     private static final int CLASS_LEN = ".class".length();
     private RemapperProcessor preProcessor;
     public final JarMapping jarMapping;
@@ -53,6 +70,25 @@ public class JarRemapper extends CustomRemapper {
     private int writerFlags = COMPUTE_MAXS;
     private int readerFlags = 0;
     private boolean copyResources = true;
+    private int threads = 1;
+    private File lambdaMappingsFile = new File("inv_dyn.srg");
+    private boolean flattenInheritance = false;
+    private boolean streaming = false;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean storeEntries = false;
+    // Time spent in each stage of remapJar, summed over all threads
+    private final AtomicLong remapNanos = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private AutoRemapAllocator autoRemapAllocator;
+    private int descriptorCacheSize = 16384;
+    private String classCacheSpec = CachingRepo.DEFAULT_CACHE_SPEC;
+    private CachingRepo runtimeRepo = RuntimeRepo.getInstance();
+    // Remapped field and method descriptors, and signatures, by original
+    private volatile Cache<String, String> descriptorCache;
+    private volatile Cache<String, String> signatureCache;
+    private volatile Cache<String, String> typeSignatureCache;
+    private Searge lambdaMappings;
     private final JarMapping unusedMappings;
 
     public JarRemapper(RemapperProcessor preProcessor, JarMapping jarMapping, RemapperProcessor postProcessor) {
@@ -60,6 +96,7 @@ public class JarRemapper extends CustomRemapper {
         this.jarMapping = jarMapping;
         this.postProcessor = postProcessor;
         this.unusedMappings = jarMapping.clone();
+        resetDescriptorCaches();
     }
 
     public JarRemapper(RemapperProcessor remapperPreprocessor, JarMapping jarMapping) {
@@ -86,9 +123,128 @@ public class JarRemapper extends CustomRemapper {
         }
     }
 
+    /**
+     * Set the number of threads used to remap a jar.
+     *
+     * With more than one thread, entries are read and remapped concurrently
+     * but still written in archive order, so the output jar is the same as
+     * with a single thread. The jar mapping is frozen while a jar is remapped
+     * in parallel, as its lookups are then shared between threads, and so
+     * cannot load more mappings until {@link #remapJar} returns. If its
+     * threads fail to stop after an error, the mapping is left frozen.
+     */
+    public void setThreads(int threads) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        this.threads = threads;
+    }
+
+    /**
+     * Set the file lambda implementation method mappings are appended to at
+     * the end of {@link #remapJar}, or null to not record them.
+     */
+    public void setLambdaMappingsFile(File lambdaMappingsFile) {
+        this.lambdaMappingsFile = lambdaMappingsFile;
+    }
+
+    /**
+     * Set whether the inheritance of every class in a jar is flattened into a
+     * {@link HierarchyIndex} before it is remapped, so that member lookups
+     * walk a precomputed ancestor list rather than climbing recursively.
+     */
+    public void setFlattenInheritance(boolean flattenInheritance) {
+        this.flattenInheritance = flattenInheritance;
+    }
+
+    /**
+     * Set whether each class is passed straight from reader through the
+     * processors and remapper to writer, rather than being built into a
+     * {@link ClassNode} first.
+     *
+     * Streaming avoids building and replaying a tree for every class. Without
+     * a post-processor it writes the same classes. With one, the tree path
+     * writes the remapped class and has the post-processor rewrite it,
+     * keeping that class's constant pool, while streaming builds a single
+     * new pool. The classes are equivalent but their bytes differ, so
+     * streaming stays opt-in to keep existing output unchanged.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Set the deflate level of classes and other entries written to remapped
+     * jars, from 0 to 9, or -1 for the default. Resources which can be
+     * copied still compressed keep their original compression.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        Preconditions.checkArgument(compressionLevel >= Deflater.DEFAULT_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION, "invalid compression level: %s", compressionLevel);
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Set whether entries written to remapped jars are stored without
+     * compression instead of deflated, as for {@link #setCompressionLevel}.
+     */
+    public void setStoreEntries(boolean storeEntries) {
+        this.storeEntries = storeEntries;
+    }
+
+    /**
+     * Set the allocator which names classes left unmapped, or null to leave
+     * them as they are. The names handed out are written to the auto remap
+     * file at the end of {@link #remapJar}.
+     */
+    public void setAutoRemapAllocator(AutoRemapAllocator autoRemapAllocator) {
+        this.autoRemapAllocator = autoRemapAllocator;
+    }
+
+    /**
+     * Set how many remapped descriptors, and separately signatures, are kept
+     * for reuse. The caches are emptied at the start of each
+     * {@link #remapJar}, so that changes to the class mappings in between
+     * are picked up.
+     */
+    public void setDescriptorCacheSize(int descriptorCacheSize) {
+        Preconditions.checkArgument(descriptorCacheSize >= 0, "descriptorCacheSize must not be negative");
+        this.descriptorCacheSize = descriptorCacheSize;
+        resetDescriptorCaches();
+    }
+
+    /**
+     * Set the policy of the caches of classes looked up while remapping, both
+     * from each jar remapped and from the runtime classpath, as described for
+     * {@link CachingRepo#CachingRepo(String)}. Runtime classes are then cached
+     * by this remapper alone, rather than in the shared {@link RuntimeRepo}.
+     *
+     * @throws IllegalArgumentException if the spec cannot be parsed
+     */
+    public void setClassCacheSpec(String classCacheSpec) {
+        this.runtimeRepo = new RuntimeRepo(classCacheSpec);
+        this.classCacheSpec = classCacheSpec;
+    }
+
+    /**
+     * Get the repository classes from outside the remapped jars are looked up
+     * in.
+     */
+    @Override
+    public CachingRepo getRuntimeRepo() {
+        return runtimeRepo;
+    }
+
+    private void resetDescriptorCaches() {
+        descriptorCache = CacheBuilder.newBuilder().maximumSize(descriptorCacheSize).recordStats().build();
+        signatureCache = CacheBuilder.newBuilder().maximumSize(descriptorCacheSize).recordStats().build();
+        typeSignatureCache = CacheBuilder.newBuilder().maximumSize(descriptorCacheSize).recordStats().build();
+    }
+
     @Override
     public String map(String typeName) {
-        return mapTypeName(typeName, jarMapping.packages, jarMapping.classes, typeName,jarMapping);
+        String mapped = mapClassName(typeName, jarMapping.packages, jarMapping.classes, jarMapping);
+        if (mapped == null && autoRemapAllocator != null) {
+            mapped = autoRemapAllocator.getName(typeName);
+        }
+        return mapped != null ? mapped : typeName;
     }
 
     public static String mapTypeName(String typeName, Map<String, String> packageMap, Map<String, String> classMap, String defaultIfUnmapped,@Nullable JarMapping mapping) {
@@ -101,26 +257,57 @@ public class JarRemapper extends CustomRemapper {
         return mapped != null ? mapped : defaultIfUnmapped;
     }
 
-    public static String getNextAutoRemapName(Map<String,String> classes,String className){
-        if (SpecialSource.autoRemapFilter.isEmpty() || SpecialSource.autoRemapFilter.stream().anyMatch(className::contains)) {
-            if (classes != null) {
-                String next = SpecialSource.autoRemapPrefix + StringUtil.toBase26(autoRemapNameIndex);
-                while (classes.containsValue(next)) {
-                    next = SpecialSource.autoRemapPrefix + StringUtil.toBase26(autoRemapNameIndex++);
-                }
-                classes.put(className, next);
-                autoRemapClasses.put(className,next);
-                return next;
-            }else {
-                return null;
-            }
-        }else return null;
+    @Override
+    public String mapDesc(String descriptor) {
+        Cache<String, String> cache = descriptorCache;
+        String mapped = cache.getIfPresent(descriptor);
+        if (mapped == null) {
+            mapped = super.mapDesc(descriptor);
+            cache.put(descriptor, mapped);
+        }
+        return mapped;
     }
 
+    @Override
+    public String mapMethodDesc(String methodDescriptor) {
+        // a method descriptor maps the same through mapDesc, so they share a cache
+        Cache<String, String> cache = descriptorCache;
+        String mapped = cache.getIfPresent(methodDescriptor);
+        if (mapped == null) {
+            mapped = super.mapMethodDesc(methodDescriptor);
+            cache.put(methodDescriptor, mapped);
+        }
+        return mapped;
+    }
 
     @Override
     public String mapSignature(String signature, boolean typeSignature) {
-        return super.mapSignature(signature, typeSignature);
+        if (signature == null) {
+            return null;
+        }
+        Cache<String, String> cache = typeSignature ? typeSignatureCache : signatureCache;
+        String mapped = cache.getIfPresent(signature);
+        if (mapped != null) {
+            // still subject to kill_sig for the current class
+            return isSignatureKilled(signature) ? null : mapped;
+        }
+
+        mapped = super.mapSignature(signature, typeSignature);
+        if (mapped != null) {
+            cache.put(signature, mapped);
+        }
+        return mapped;
+    }
+
+    /**
+     * Log how often remapped descriptors and signatures were reused.
+     */
+    private void logDescriptorCacheStats() {
+        CacheStats descriptors = descriptorCache.stats();
+        CacheStats signatures = signatureCache.stats().plus(typeSignatureCache.stats());
+        SpecialSource.log(String.format("Descriptor cache: %d hits, %d misses (%.1f%%), signature cache: %d hits, %d misses (%.1f%%)",
+                descriptors.hitCount(), descriptors.missCount(), descriptors.hitRate() * 100,
+                signatures.hitCount(), signatures.missCount(), signatures.hitRate() * 100));
     }
 
     /**
@@ -139,11 +326,26 @@ public class JarRemapper extends CustomRemapper {
 //        {
 //            String outer = className.substring(0, index);
 //            String mapped = mapClassName(outer, packageMap, classMap,mapping);
-//            if  (mapped == null) return SpecialSource.autoRemap ? getNextAutoRemapName(classMap,outer) : null;
+//            if  (mapped == null) return null;
 //            return mapped + className.substring(index);
 //        }
 
-        if (packageMap != null) {
+        if (packageMap instanceof PrefixMap) {
+            PrefixTrie trie = ((PrefixMap<String>) packageMap).getTrie();
+            int match = trie.find(className);
+            if (isDefaultPackage(className)) {
+                // "." never appears in a class name, so is looked up on its own
+                int defaultPackage = trie.indexOf(".");
+                if (defaultPackage != -1 && (match == -1 || defaultPackage < match)) {
+                    match = defaultPackage;
+                }
+            }
+
+            if (match != -1) {
+                String oldPackage = trie.getPrefix(match);
+                return moveClassPackage(packageMap.get(oldPackage), getSimpleName(oldPackage, className));
+            }
+        } else if (packageMap != null) {
             for (String oldPackage : packageMap.keySet()) {
                 if (matchClassPackage(oldPackage, className)) {
                     String newPackage = packageMap.get(oldPackage);
@@ -153,7 +355,7 @@ public class JarRemapper extends CustomRemapper {
             }
         }
 
-        return SpecialSource.autoRemap ? getNextAutoRemapName(classMap,className) : null;
+        return null;
     }
 
     private static boolean matchClassPackage(String packageName, String className) {
@@ -186,16 +388,26 @@ public class JarRemapper extends CustomRemapper {
 
     @Override
     public String mapFieldName(String owner, String name, String desc, int access) {
-        String mapped = jarMapping.tryClimb(jarMapping.fields, NodeType.FIELD, owner, name, access);
+        String mapped = jarMapping.tryClimb(NodeType.FIELD, owner, name, desc, access);
         return mapped == null ? name : mapped;
     }
 
     @Override
     public String mapMethodName(String owner, String name, String desc, int access) {
-        String mapped = jarMapping.tryClimb(jarMapping.methods, NodeType.METHOD, owner, name + " " + desc, access);
+        String mapped = jarMapping.tryClimb(NodeType.METHOD, owner, name, desc, access);
         return mapped == null ? name : mapped;
     }
 
+    @Override
+    public void addLambdaMapping(Handle implMethod, Handle mappedImplMethod) {
+        Searge lambdaMappings = this.lambdaMappings;
+        if (lambdaMappings != null) {
+            lambdaMappings.addMethodMap(
+                    new Ownable(NodeType.METHOD, implMethod.getOwner(), implMethod.getName(), implMethod.getDesc(), 0),
+                    new Ownable(NodeType.METHOD, mappedImplMethod.getOwner(), mappedImplMethod.getName(), mappedImplMethod.getDesc(), 0));
+        }
+    }
+
     public void remapJar(Jar jar, File target) throws IOException {
         remapJar(jar, target, Collections.EMPTY_SET);
     }
@@ -210,61 +422,59 @@ public class JarRemapper extends CustomRemapper {
         if (target.getParentFile() != null && !target.getParentFile().exists()) {
             target.getParentFile().mkdirs();
         }
-        ClassRepo repo = new JarRepo(jar);
-        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(target))) {
+        CachingRepo repo = new JarRepo(jar, classCacheSpec);
+        resetDescriptorCaches();
+        lambdaMappings = lambdaMappingsFile == null ? null : new Searge(jar.getFilename(), target.getName());
+        remapNanos.set(0);
+        compressNanos.set(0);
+        writeNanos.set(0);
+        try (ZipWriter out = new ZipWriter(target)) {
+            if (SpecialSource.stable) {
+                out.setTime(0);
+            }
+            out.setLevel(compressionLevel);
+            out.setStored(storeEntries);
             List<String> jarEntries = new ArrayList<>(jar.getEntryNames());
+            if (flattenInheritance) {
+                List<String> classNames = new ArrayList<>();
+                for (String name : jarEntries) {
+                    if (name.endsWith(".class")) {
+                        classNames.add(name.substring(0, name.length() - ".class".length()));
+                    }
+                }
+                HierarchyIndex index = jarMapping.buildHierarchyIndex(classNames);
+                SpecialSource.log("Flattened inheritance of " + index.size() + " classes");
+            }
             ProgressMeter meter = new ProgressMeter(jarEntries.size(), "Remapping jar... %2.0f%%");
 
-            for (String name : jarEntries) {
-                JarEntry entry;
-
-                try (InputStream is = jar.getResource(name)) {
-                    byte[] data;
-                    if (name.endsWith(".class") && shouldHandle(name, includes) && (!SpecialSource.kill_pkgInfo || !name
-                            .contains("package-info.class"))) {
-                        // remap classes
-                        name = name.substring(0, name.length() - CLASS_LEN);
-
-                        data = remapClassFile(is, repo);
-                        String newName = map(name);
-
-                        entry = new JarEntry(newName == null ? name : newName + ".class");
-                    } else if (name.endsWith(".DSA") || name.endsWith(".SF")) {
-                        // skip signatures
-                        continue;
-                    } else {
-                        // copy other resources exclude the package-info
-                        if (!copyResources || name.contains("package-info.class")) {
-                            continue; // unless generating an API
-                        }
-                        entry = new JarEntry(name);
-                        if (entry.isDirectory()) {
-                            continue;
-                        }
-
-                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                        int n;
-                        byte[] b = new byte[32768]; // Max class file size
-                        while ((n = is.read(b, 0, b.length)) != -1) {
-                            buffer.write(b, 0, n);
-                        }
-                        buffer.flush();
-                        data = buffer.toByteArray();
-                    }
-                    if (SpecialSource.stable) {
-                        entry.setTime(0);
+            if (threads > 1) {
+                remapEntriesParallel(jar, jarEntries, repo, includes, out, meter);
+            } else {
+                for (String name : jarEntries) {
+                    RemappedEntry remapped = remapEntry(jar, name, repo, includes, out);
+                    if (remapped != null) {
+                        remapped.write(out);
+                        meter.makeProgress();
                     }
-                    out.putNextEntry(entry);
-                    out.write(data);
-
-                    meter.makeProgress();
                 }
             }
         }
-        if (SpecialSource.autoRemap) {
+        SpecialSource.log(String.format("Remapping took %.2fs, compressing %.2fs and writing %.2fs", remapNanos.get() / 1e9, compressNanos.get() / 1e9, writeNanos.get() / 1e9));
+        SpecialSource.log("Member access lookups: " + repo.getMemberHits() + " found, " + repo.getMemberMisses() + " not found");
+        SpecialSource.log("Class cache: " + repo.getCacheSummary());
+        SpecialSource.log("Runtime class cache: " + runtimeRepo.getCacheSummary());
+        SpecialSource.log("Inheritance climb cache: " + jarMapping.getClimbCacheHits() + " hits, " + jarMapping.getClimbCacheMisses() + " misses");
+        logDescriptorCacheStats();
+        if (lambdaMappings != null) {
+            try (PrintWriter printWriter = new PrintWriter(new FileWriter(lambdaMappingsFile, true))) {
+                lambdaMappings.write(printWriter, true);
+            }
+            lambdaMappings = null;
+        }
+        if (autoRemapAllocator != null && SpecialSource.autoRemapOutFile != null) {
             try (PrintWriter printWriter = new PrintWriter(new FileWriter(SpecialSource.autoRemapOutFile,SpecialSource.writeMethod.isAppend()),true)) {
                 Searge srg = new Searge(jar.getFilename(),target.getName());
-                for (Map.Entry<String, String> stringStringEntry : autoRemapClasses.entrySet()) {
+                for (Map.Entry<String, String> stringStringEntry : autoRemapAllocator.getAllocated().entrySet()) {
                     srg.addClassMap(stringStringEntry.getKey(),stringStringEntry.getValue());
                 }
                 srg.write(printWriter,SpecialSource.writeMethod.isAppend());
@@ -286,6 +496,126 @@ public class JarRemapper extends CustomRemapper {
         }
     }
 
+    /**
+     * Remap entries on a pool of worker threads, writing the results in the
+     * original entry order as they become available. At most a few entries
+     * per thread are held in memory waiting to be written.
+     */
+    private void remapEntriesParallel(final Jar jar, List<String> jarEntries, final ClassRepo repo, final Set<String> includes, final ZipWriter out, ProgressMeter meter) throws IOException {
+        jarMapping.freeze();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<RemappedEntry>> pending = new ArrayDeque<>();
+            Iterator<String> it = jarEntries.iterator();
+            while (it.hasNext() || !pending.isEmpty()) {
+                while (it.hasNext() && pending.size() < threads * 4) {
+                    final String name = it.next();
+                    pending.add(executor.submit(() -> remapEntry(jar, name, repo, includes, out)));
+                }
+
+                RemappedEntry remapped = await(pending.poll());
+                if (remapped != null) {
+                    remapped.write(out);
+                    meter.makeProgress();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            // after a failure, workers may still be looking up mappings
+            boolean terminated = false;
+            try {
+                terminated = executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (terminated) {
+                jarMapping.unfreeze();
+            } else {
+                System.err.println("[Warning] Remapping threads did not stop, leaving the jar mapping frozen");
+            }
+        }
+    }
+
+    private static RemappedEntry await(Future<RemappedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while remapping jar");
+        } catch (ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Read and remap a single jar entry, and compress it for the output jar.
+     *
+     * @return the entry to write, or null if it should be left out of the
+     * output jar
+     */
+    private RemappedEntry remapEntry(Jar jar, String name, ClassRepo repo, Set<String> includes, ZipWriter out) throws IOException {
+        if (name.endsWith(".class") && shouldHandle(name, includes) && (!SpecialSource.kill_pkgInfo || !name
+                .contains("package-info.class"))) {
+            // remap classes
+            name = name.substring(0, name.length() - CLASS_LEN);
+
+            long start = System.nanoTime();
+            // read afresh rather than kept, the repository caches what lookups need
+            byte[] data = remapClassFile(jar.getClassBytes(name), repo);
+            String newName = map(name);
+            remapNanos.addAndGet(System.nanoTime() - start);
+
+            return new RemappedEntry(newName == null ? name : newName + ".class", compress(out, data), null);
+        } else if (name.endsWith(".DSA") || name.endsWith(".SF")) {
+            // skip signatures
+            return null;
+        } else {
+            // copy other resources exclude the package-info
+            if (!copyResources || name.contains("package-info.class")) {
+                return null; // unless generating an API
+            }
+            if (name.endsWith("/")) {
+                return null;
+            }
+
+            // copied still compressed where possible
+            ZipReader.Entry raw = jar.getRawResource(name);
+            if (raw != null) {
+                return new RemappedEntry(name, null, raw);
+            }
+
+            try (InputStream is = jar.getResource(name)) {
+                return new RemappedEntry(name, compress(out, ByteStreams.toByteArray(is)), null);
+            }
+        }
+    }
+
+    private ZipWriter.Compressed compress(ZipWriter out, byte[] data) {
+        long start = System.nanoTime();
+        ZipWriter.Compressed compressed = out.compress(data);
+        compressNanos.addAndGet(System.nanoTime() - start);
+        return compressed;
+    }
+
+    @RequiredArgsConstructor
+    private class RemappedEntry {
+
+        private final String name;
+        private final ZipWriter.Compressed data;
+        private final ZipReader.Entry raw;
+
+        private void write(ZipWriter out) throws IOException {
+            long start = System.nanoTime();
+            if (raw != null) {
+                out.copy(name, raw);
+            } else {
+                out.write(name, data);
+            }
+            writeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
     private static boolean shouldHandle(String name, Set<String> includes) {
         if (includes.isEmpty()) {
             return true;
@@ -315,6 +645,10 @@ public class JarRemapper extends CustomRemapper {
     }
 
     private byte[] remapClassFile(ClassReader reader, final ClassRepo repo) {
+        if (streaming) {
+            return remapClassFileStreaming(reader, repo);
+        }
+
         if (preProcessor != null) {
             byte[] pre = preProcessor.process(reader);
             if (pre != null) {
@@ -334,4 +668,22 @@ public class JarRemapper extends CustomRemapper {
 
         return (postProcessor != null) ? postProcessor.process(wr.toByteArray()) : wr.toByteArray();
     }
+
+    private byte[] remapClassFileStreaming(ClassReader reader, ClassRepo repo) {
+        // Not copying the constant pool from the reader, as it would keep every original name
+        ClassWriter wr = new ClassWriter(writerFlags);
+
+        ClassVisitor visitor = (postProcessor != null) ? postProcessor.createClassVisitor(wr) : wr;
+        visitor = new RemappingClassAdapter(visitor, this, repo, reader.getClassName());
+        if (preProcessor != null) {
+            visitor = preProcessor.createClassVisitor(visitor);
+        }
+        reader.accept(visitor, readerFlags);
+
+        if (SpecialSource.identifier != null) {
+            wr.newUTF8(SpecialSource.identifier);
+        }
+
+        return wr.toByteArray();
+    }
 }
@@ -0,0 +1,462 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource;
+
+import com.google.common.base.Preconditions;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import net.md_5.specialsource.util.Pair;
+import net.md_5.specialsource.util.SymbolTable;
+
+/**
+ * Table of field or method mappings to their new names.
+ *
+ * Owners, names and descriptors are interned, and each key is stored as the
+ * three ids packed into a long in an open addressing table, so looking up a
+ * member by its parts allocates nothing. The {@link Map} view uses the same
+ * string keys as before, "owner/name" for fields and "owner/name desc" for
+ * methods.
+ *
+ * Mappings loaded from a file also record the owner, and for methods the
+ * descriptor, of the member once remapped, so that the mappings which were
+ * never looked up can be written out again.
+ *
+ * Lookups are safe from many threads once no more mappings are being added,
+ * which can be enforced by making the map read-only.
+ */
+public class MemberMap extends AbstractMap<String, String> {
+
+    private static final int NAME_BITS = 21;
+    private static final int DESC_BITS = 22;
+    private static final int OWNER_BITS = 64 - NAME_BITS - DESC_BITS;
+    private static final long EMPTY = 0; // owner ids start at 1, so never a key
+    public static final int MAX_OWNER_ID = (1 << OWNER_BITS) - 1;
+    //
+    private final SymbolTable classes;
+    private final SymbolTable names;
+    private final SymbolTable descs;
+    private final boolean methods;
+    // Remapped owners and descriptors of loaded members
+    private final SymbolTable targets = new SymbolTable();
+    private long[] keys = new long[16];
+    private int[] values = new int[16];
+    private int[] targetOwners = new int[16];
+    private int[] targetDescs;
+    private boolean[] used = new boolean[16];
+    private int size;
+    // Read by remapping threads to validate their caches
+    private volatile int modCount;
+    private volatile boolean readOnly;
+
+    /**
+     * @param classes Symbol table for owner names
+     * @param names Symbol table for member names, old and new
+     * @param descs Symbol table for method descriptors, or null for fields
+     */
+    public MemberMap(SymbolTable classes, SymbolTable names, SymbolTable descs) {
+        this.classes = classes;
+        this.names = names;
+        this.descs = descs;
+        this.methods = descs != null;
+        this.targetDescs = methods ? new int[16] : null;
+    }
+
+    /**
+     * Check whether a member with this name and descriptor could be mapped in
+     * any class. If not, there is no need to look through its owner's parents.
+     */
+    public boolean mayContain(String name, String desc) {
+        return names.find(name) != -1 && (!methods || descs.find(desc) != -1);
+    }
+
+    /**
+     * Make this map read-only, or writable again. Adding to or clearing a
+     * read-only map throws {@link IllegalStateException}. Marking mappings as
+     * used is still allowed.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Number of changes made to this map, for invalidating derived caches.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Pack the ids of a member name and descriptor into a key for caches of
+     * lookups, leaving the owner bits clear for {@link #withOwner}. The
+     * descriptor is ignored for fields.
+     *
+     * @return the key, or -1 if the name or descriptor is not in any mapping
+     */
+    public long getMemberKey(String name, String desc) {
+        int nameId = names.find(name);
+        int descId = methods ? descs.find(desc) : 0;
+        return (nameId == -1 || descId == -1) ? -1 : pack(0, nameId, descId);
+    }
+
+    /**
+     * Add an owner id, below {@link #MAX_OWNER_ID}, to a member key.
+     */
+    public static long withOwner(long memberKey, int ownerId) {
+        return memberKey | pack(ownerId, 0, 0);
+    }
+
+    /**
+     * Find the slot holding a member, or -1 if it is not mapped. The
+     * descriptor is ignored for fields.
+     */
+    public int find(String owner, String name, String desc) {
+        int ownerId = classes.find(owner);
+        int nameId = names.find(name);
+        int descId = methods ? descs.find(desc) : 0;
+        if (ownerId == -1 || nameId == -1 || descId == -1) {
+            return -1;
+        }
+
+        long key = pack(ownerId, nameId, descId);
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            if (keys[slot] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Get the new name of a member, or null if it is not mapped.
+     */
+    public String get(String owner, String name, String desc) {
+        int slot = find(owner, name, desc);
+        return slot == -1 ? null : getMapped(slot);
+    }
+
+    public String getMapped(int slot) {
+        return names.get(values[slot]);
+    }
+
+    /**
+     * Record that the mapping in the given slot was looked up.
+     */
+    public void markUsed(int slot) {
+        used[slot] = true;
+    }
+
+    /**
+     * Check whether the mapping with the given key has been looked up.
+     */
+    public boolean isUsed(String key) {
+        int slot = find(key);
+        return slot != -1 && used[slot];
+    }
+
+    public String put(String owner, String name, String desc, String mapped) {
+        return put(owner, name, desc, mapped, 0, 0);
+    }
+
+    /**
+     * Add a mapping along with the owner and descriptor of the member once
+     * remapped, to be reported by {@link #getUnused()} if it is never looked
+     * up.
+     *
+     * @param targetDesc Remapped method descriptor, ignored for fields
+     */
+    public String put(String owner, String name, String desc, String mapped, String targetOwner, String targetDesc) {
+        return put(owner, name, desc, mapped, internTarget(targetOwner), methods ? internTarget(targetDesc) : 0);
+    }
+
+    private int internTarget(String target) {
+        return target == null ? 0 : targets.intern(target);
+    }
+
+    private String put(String owner, String name, String desc, String mapped, int targetOwner, int targetDesc) {
+        checkWritable();
+        long key = pack(intern(classes, owner, OWNER_BITS), intern(names, name, NAME_BITS), methods ? intern(descs, desc, DESC_BITS) : 0);
+        int mappedId = names.intern(mapped);
+        modCount++;
+
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                String old = getMapped(slot);
+                values[slot] = mappedId;
+                if (targetOwner != 0) {
+                    setTarget(slot, targetOwner, targetDesc);
+                }
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = mappedId;
+        setTarget(slot, targetOwner, targetDesc);
+        size++;
+        return null;
+    }
+
+    private void setTarget(int slot, int targetOwner, int targetDesc) {
+        targetOwners[slot] = targetOwner;
+        if (methods) {
+            targetDescs[slot] = targetDesc;
+        }
+    }
+
+    /**
+     * Get the remapped owner recorded with the mapping in the given slot, or
+     * null if there is none.
+     */
+    public String getTargetOwner(int slot) {
+        return targets.get(targetOwners[slot]);
+    }
+
+    /**
+     * Get the remapped method descriptor recorded with the mapping in the
+     * given slot, or null if there is none.
+     */
+    public String getTargetDesc(int slot) {
+        return methods ? targets.get(targetDescs[slot]) : null;
+    }
+
+    /**
+     * Get the mappings which were loaded with their remapped owner but have
+     * not been looked up, as pairs of the old and new member.
+     */
+    public List<Pair<Ownable>> getUnused() {
+        NodeType type = methods ? NodeType.METHOD : NodeType.FIELD;
+        List<Pair<Ownable>> unused = new ArrayList<Pair<Ownable>>();
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] == EMPTY || used[slot] || targetOwners[slot] == 0) {
+                continue;
+            }
+            long key = keys[slot];
+            String owner = classes.get(getOwnerId(key));
+            String name = names.get(getNameId(key));
+            String desc = methods ? descs.get(getDescId(key)) : "";
+            String targetDesc = methods ? getTargetDesc(slot) : "";
+            unused.add(new Pair<Ownable>(new Ownable(type, owner, name, desc, 0), new Ownable(type, getTargetOwner(slot), getMapped(slot), targetDesc, 0)));
+        }
+        return unused;
+    }
+
+    @Override
+    public String put(String key, String mapped) {
+        int split = split(key);
+        if (split == -1) {
+            throw new IllegalArgumentException("Invalid " + (methods ? "method" : "field") + " mapping key: " + key);
+        }
+        int space = methods ? key.indexOf(' ', split) : -1;
+
+        return methods
+                ? put(key.substring(0, split), key.substring(split + 1, space), key.substring(space + 1), mapped)
+                : put(key.substring(0, split), key.substring(split + 1), null, mapped);
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int slot = find((String) key);
+        return slot == -1 ? null : getMapped(slot);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find((String) key) != -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(used, false);
+        Arrays.fill(targetOwners, 0);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int slot = advance(0);
+
+                    private int advance(int from) {
+                        while (from < keys.length && keys[from] == EMPTY) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < keys.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>(getKey(slot), getMapped(slot));
+                        slot = advance(slot + 1);
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int find(String key) {
+        int split = split(key);
+        if (split == -1) {
+            return -1;
+        }
+        if (!methods) {
+            return find(key.substring(0, split), key.substring(split + 1), null);
+        }
+
+        int space = key.indexOf(' ', split);
+        return find(key.substring(0, split), key.substring(split + 1, space), key.substring(space + 1));
+    }
+
+    /**
+     * Index of the '/' separating owner and name in a string key, or -1 if the
+     * key is malformed.
+     */
+    private int split(String key) {
+        if (!methods) {
+            return key.lastIndexOf('/');
+        }
+
+        int space = key.indexOf(' ');
+        return space == -1 ? -1 : key.lastIndexOf('/', space);
+    }
+
+    private String getKey(int slot) {
+        long key = keys[slot];
+        String owner = classes.get(getOwnerId(key));
+        String name = names.get(getNameId(key));
+        if (!methods) {
+            return owner + "/" + name;
+        }
+
+        return owner + "/" + name + " " + descs.get(getDescId(key));
+    }
+
+    private static int getOwnerId(long key) {
+        return (int) (key >>> (NAME_BITS + DESC_BITS));
+    }
+
+    private static int getNameId(long key) {
+        return (int) (key >>> DESC_BITS) & ((1 << NAME_BITS) - 1);
+    }
+
+    private static int getDescId(long key) {
+        return (int) key & ((1 << DESC_BITS) - 1);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        int[] oldTargetOwners = targetOwners;
+        int[] oldTargetDescs = targetDescs;
+        boolean[] oldUsed = used;
+
+        keys = new long[capacity];
+        values = new int[capacity];
+        targetOwners = new int[capacity];
+        targetDescs = methods ? new int[capacity] : null;
+        used = new boolean[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                setTarget(slot, oldTargetOwners[i], methods ? oldTargetDescs[i] : 0);
+                used[slot] = oldUsed[i];
+            }
+        }
+    }
+
+    private void checkWritable() {
+        Preconditions.checkState(!readOnly, "Cannot change a read-only " + (methods ? "method" : "field") + " map");
+    }
+
+    private static int intern(SymbolTable table, String symbol, int bits) {
+        int id = table.intern(symbol);
+        if (id >= 1 << bits) {
+            throw new IllegalStateException("Too many distinct symbols in mapping, " + symbol + " is number " + id);
+        }
+        return id;
+    }
+
+    private static long pack(int owner, int name, int desc) {
+        return ((long) owner << (NAME_BITS + DESC_BITS)) | ((long) name << DESC_BITS) | desc;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
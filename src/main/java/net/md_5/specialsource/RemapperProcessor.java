@@ -28,16 +28,22 @@
  */
 package net.md_5.specialsource;
 
+import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.tree.*;
+import org.objectweb.asm.TypePath;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.List;
 
 /**
  * "Pre-process" a class file, intended to be used before remapping with
@@ -103,180 +109,360 @@ public class RemapperProcessor {
         remapReflectClass = b;
     }
 
-    @SuppressWarnings("unchecked")
     public byte[] process(ClassReader classReader) {
-        byte[] bytecode = null;
-        ClassNode classNode = new ClassNode();
-        int flags = 0;
-
         if (!isRewritingNeeded()) {
             // Not rewriting the class - skip the code, not needed
-            flags |= ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG;
+            classReader.accept(createClassVisitor(null), ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+            return null;
         }
 
-        classReader.accept(classNode, flags);
-
-        String className = classNode.name;
+        // Only access flags and string constants change, so the constant pool is copied from the reader
+        ClassWriter cw = new ClassWriter(classReader, 0);
+        classReader.accept(createClassVisitor(cw), 0);
+        return cw.toByteArray();
+    }
 
-        // Inheritance extraction
-        if (inheritanceMap != null) {
-            logI("Loading plugin class inheritance for " + className);
+    /**
+     * Create a visitor which processes each class as it passes through to
+     * the given visitor, for use in a visitor chain instead of
+     * {@link #process}.
+     *
+     * @param cv Next visitor in the chain, or null if only extracting
+     * inheritance
+     */
+    public ClassVisitor createClassVisitor(ClassVisitor cv) {
+        return new ProcessingClassVisitor(cv);
+    }
 
-            // Get inheritance
-            ArrayList<String> parents = new ArrayList<String>();
+    private boolean isRewritingNeeded() {
+        return jarMapping != null || accessMap != null;
+    }
 
-            for (String iface : classNode.interfaces) {
-                parents.add(iface);
-            }
-            parents.add(classNode.superName);
+    /**
+     * Applies inheritance extraction, access transformers and reflection
+     * remapping to each class visited.
+     */
+    private class ProcessingClassVisitor extends ClassVisitor {
 
-            inheritanceMap.setParents(className.replace('.', '/'), parents);
+        private String className;
 
-            logI("Inheritance added " + className + " parents " + parents.size());
+        private ProcessingClassVisitor(ClassVisitor cv) {
+            super(Opcodes.ASM9, cv);
         }
 
-        if (isRewritingNeeded()) {
-            // Class access
-            if (accessMap != null) {
-                classNode.access = accessMap.applyClassAccess(className, classNode.access);
-                for (InnerClassNode inner : classNode.innerClasses) {
-                    inner.access = accessMap.applyClassAccess(inner.name, inner.access);
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            className = name;
+
+            // Inheritance extraction
+            if (inheritanceMap != null) {
+                logI("Loading plugin class inheritance for " + className);
+
+                // Get inheritance
+                ArrayList<String> parents = new ArrayList<String>();
+
+                if (interfaces != null) {
+                    for (String iface : interfaces) {
+                        parents.add(iface);
+                    }
                 }
+                parents.add(superName);
+
+                inheritanceMap.setParents(className.replace('.', '/'), parents);
+
+                logI("Inheritance added " + className + " parents " + parents.size());
             }
 
-            // Field access
+            // Class access
             if (accessMap != null) {
-                for (FieldNode fieldNode : classNode.fields) {
-                    fieldNode.access = accessMap.applyFieldAccess(className, fieldNode.name, fieldNode.access);
-                }
+                access = accessMap.applyClassAccess(className, access);
             }
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
 
-            for (MethodNode methodNode : classNode.methods) {
-                // Method access
-                if (accessMap != null) {
-                    methodNode.access = accessMap.applyMethodAccess(className, methodNode.name, methodNode.desc, methodNode.access);
-                }
-
-                // Reflection remapping
-                if (jarMapping != null) {
-                    AbstractInsnNode insn = methodNode.instructions.getFirst();
-                    while (insn != null) {
-                        switch (insn.getOpcode())
-                        {
-                            case Opcodes.INVOKEVIRTUAL:
-                                remapGetDeclaredField(insn);
-                                break;
-
-                            case Opcodes.INVOKESTATIC:
-                                remapClassForName(insn);
-                                break;
-                        }
-
-                        insn = insn.getNext();
-                    }
-                }
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+            if (accessMap != null) {
+                access = accessMap.applyClassAccess(name, access);
             }
+            super.visitInnerClass(name, outerName, innerName, access);
+        }
 
-            ClassWriter cw = new ClassWriter(0);
-            classNode.accept(cw);
-            bytecode = cw.toByteArray();
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            // Field access
+            if (accessMap != null) {
+                access = accessMap.applyFieldAccess(className, name, access);
+            }
+            return super.visitField(access, name, descriptor, signature, value);
         }
 
-        return bytecode;
-    }
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            // Method access
+            if (accessMap != null) {
+                access = accessMap.applyMethodAccess(className, name, descriptor, access);
+            }
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
 
-    private boolean isRewritingNeeded() {
-        return jarMapping != null || accessMap != null;
+            // Reflection remapping
+            if (mv != null && jarMapping != null && (remapReflectField || remapReflectClass)) {
+                mv = new ReflectionMethodVisitor(mv);
+            }
+            return mv;
+        }
     }
 
     /**
-     * Replace class.getDeclaredField("string") with a remapped field string
-     *
-     * @param insn Method call instruction
+     * Holds back up to two constant loads in a row, until it is known whether
+     * they are the arguments of a reflective lookup to remap. Any other
+     * instruction, label, frame or line number in between breaks the
+     * pattern.
      */
-    private void remapGetDeclaredField(AbstractInsnNode insn) {
-        if (!this.remapReflectField) {
-            return;
+    private class ReflectionMethodVisitor extends MethodVisitor {
+
+        private final ArrayDeque<Object> pendingLdc = new ArrayDeque<Object>(2);
+
+        private ReflectionMethodVisitor(MethodVisitor mv) {
+            super(Opcodes.ASM9, mv);
         }
 
-        MethodInsnNode mi = (MethodInsnNode) insn;
+        private void flush() {
+            while (!pendingLdc.isEmpty()) {
+                super.visitLdcInsn(pendingLdc.poll());
+            }
+        }
 
-        if (!mi.owner.equals("java/lang/Class") || !mi.name.equals("getDeclaredField") || !mi.desc.equals("(Ljava/lang/String;)Ljava/lang/reflect/Field;")) {
-            return;
+        @Override
+        public void visitLdcInsn(Object value) {
+            if (pendingLdc.size() == 2) {
+                super.visitLdcInsn(pendingLdc.poll());
+            }
+            pendingLdc.add(value);
         }
 
-        logR("ReflectionRemapper found getDeclaredField!");
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            switch (opcode) {
+                case Opcodes.INVOKEVIRTUAL:
+                    remapGetDeclaredField(owner, name, descriptor);
+                    break;
 
-        if (insn.getPrevious() == null || insn.getPrevious().getOpcode() != Opcodes.LDC) {
-            logR("- not constant field; skipping, prev=" + insn.getPrevious());
-            return;
+                case Opcodes.INVOKESTATIC:
+                    remapClassForName(owner, name, descriptor);
+                    break;
+            }
+            flush();
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
         }
-        LdcInsnNode ldcField = (LdcInsnNode) insn.getPrevious();
-        if (!(ldcField.cst instanceof String)) {
-            logR("- not field string; skipping: " + ldcField.cst);
-            return;
+
+        /**
+         * Replace class.getDeclaredField("string") with a remapped field string
+         */
+        private void remapGetDeclaredField(String owner, String name, String descriptor) {
+            if (!remapReflectField) {
+                return;
+            }
+
+            if (!owner.equals("java/lang/Class") || !name.equals("getDeclaredField") || !descriptor.equals("(Ljava/lang/String;)Ljava/lang/reflect/Field;")) {
+                return;
+            }
+
+            logR("ReflectionRemapper found getDeclaredField!");
+
+            if (pendingLdc.isEmpty()) {
+                logR("- not constant field; skipping");
+                return;
+            }
+            Object fieldCst = pendingLdc.peekLast();
+            if (!(fieldCst instanceof String)) {
+                logR("- not field string; skipping: " + fieldCst);
+                return;
+            }
+            String fieldName = (String) fieldCst;
+
+            if (pendingLdc.size() < 2) {
+                logR("- not constant class; skipping: field=" + fieldCst);
+                return;
+            }
+            Object classCst = pendingLdc.peekFirst();
+            if (!(classCst instanceof Type)) {
+                logR("- not class type; skipping: field=" + fieldCst + ", class=" + classCst);
+                return;
+            }
+            String className = ((Type) classCst).getInternalName();
+
+            String newName = jarMapping.tryClimb(NodeType.FIELD, className, fieldName, null, 0);
+            logR("Remapping " + className + "/" + fieldName + " -> " + newName);
+
+            if (newName != null) {
+                // Change the string literal to the correct name
+                pendingLdc.pollLast();
+                pendingLdc.add(newName);
+                // the class constant is not remapped here - taken care of by JarRemapper
+            }
+        }
+
+        /**
+         * Replace Class.forName("string") with a remapped field string
+         */
+        private void remapClassForName(String owner, String name, String descriptor) {
+            if (!remapReflectClass) {
+                return;
+            }
+
+            if (!owner.equals("java/lang/Class") || !name.equals("forName") || !descriptor.equals("(Ljava/lang/String;)Ljava/lang/Class;")) {
+                return;
+            }
+
+            logR("ReflectionRemapped found Class forName!");
+
+            if (pendingLdc.isEmpty()) {
+                logR("- not constant field; skipping");
+                return;
+            }
+            Object classNameCst = pendingLdc.peekLast();
+            if (!(classNameCst instanceof String)) {
+                logR("- not field string; skipping: " + classNameCst);
+                return;
+            }
+            String className = (String) classNameCst;
+
+            String newName = jarMapping.classes.get(className.replace('.', '/')); // TODO: ToInternalName
+            logR("Remapping " + className + " -> " + newName);
+
+            if (newName != null) {
+                // Change the string literal to the correct name
+                pendingLdc.pollLast();
+                pendingLdc.add(newName.replace('/', '.'));
+            }
         }
-        String fieldName = (String) ldcField.cst;
 
-        if (ldcField.getPrevious() == null || ldcField.getPrevious().getOpcode() != Opcodes.LDC) {
-            logR("- not constant class; skipping: field=" + ldcField.cst);
-            return;
+        @Override
+        public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+            flush();
+            super.visitFrame(type, numLocal, local, numStack, stack);
         }
-        LdcInsnNode ldcClass = (LdcInsnNode) ldcField.getPrevious();
-        if (!(ldcClass.cst instanceof Type)) {
-            logR("- not class type; skipping: field=" + ldcClass.cst + ", class=" + ldcClass.cst);
-            return;
+
+        @Override
+        public void visitInsn(int opcode) {
+            flush();
+            super.visitInsn(opcode);
         }
-        String className = ((Type) ldcClass.cst).getInternalName();
 
-        String newName = jarMapping.tryClimb(jarMapping.fields, NodeType.FIELD, className, fieldName, 0);
-        logR("Remapping " + className + "/" + fieldName + " -> " + newName);
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            flush();
+            super.visitIntInsn(opcode, operand);
+        }
 
-        if (newName != null) {
-            // Change the string literal to the correct name
-            ldcField.cst = newName;
-            //ldcClass.cst = className; // not remapped here - taken care of by JarRemapper
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            flush();
+            super.visitVarInsn(opcode, var);
         }
-    }
 
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            flush();
+            super.visitTypeInsn(opcode, type);
+        }
 
-     /**
-     * Replace Class.forName("string") with a remapped field string
-     *
-     * @param insn Method call instruction
-     */
-     private void remapClassForName(AbstractInsnNode insn) {
-         if (!this.remapReflectClass) {
-             return;
-         }
-
-         MethodInsnNode mi = (MethodInsnNode) insn;
-
-         if (!mi.owner.equals("java/lang/Class") || !mi.name.equals("forName") || !mi.desc.equals("(Ljava/lang/String;)Ljava/lang/Class;")) {
-             return;
-         }
-
-         logR("ReflectionRemapped found Class forName!");
-
-         // TODO: refactor with remapGetDeclaredField()
-         if (insn.getPrevious() == null || insn.getPrevious().getOpcode() != Opcodes.LDC) {
-             logR("- not constant field; skipping, prev=" + insn.getPrevious());
-             return;
-         }
-         LdcInsnNode ldcClassName = (LdcInsnNode) insn.getPrevious();
-         if (!(ldcClassName.cst instanceof String)) {
-             logR("- not field string; skipping: " + ldcClassName.cst);
-             return;
-         }
-         String className = (String) ldcClassName.cst;
-
-         String newName = jarMapping.classes.get(className.replace('.', '/')); // TODO: ToInternalName
-         logR("Remapping " + className + " -> " + newName);
-
-         if (newName != null) {
-             // Change the string literal to the correct name
-             ldcClassName.cst = newName.replace('/', '.');
-         }
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            flush();
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            flush();
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            flush();
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            flush();
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            flush();
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            flush();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            flush();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            flush();
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+        }
+
+        @Override
+        public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+            flush();
+            return super.visitInsnAnnotation(typeRef, typePath, descriptor, visible);
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            flush();
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+
+        @Override
+        public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+            flush();
+            return super.visitTryCatchAnnotation(typeRef, typePath, descriptor, visible);
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {
+            flush();
+            super.visitLocalVariable(name, descriptor, signature, start, end, index);
+        }
+
+        @Override
+        public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start, Label[] end, int[] index, String descriptor, boolean visible) {
+            flush();
+            return super.visitLocalVariableAnnotation(typeRef, typePath, start, end, index, descriptor, visible);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            flush();
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            flush();
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        @Override
+        public void visitEnd() {
+            flush();
+            super.visitEnd();
+        }
     }
 
     private void logI(String message) {
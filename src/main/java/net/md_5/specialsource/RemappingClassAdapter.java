@@ -68,14 +68,17 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.commons.FieldRemapper;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.FieldNode;
-import org.objectweb.asm.tree.MethodNode;
+
+import java.util.HashSet;
+import java.util.Set;
 
 public class RemappingClassAdapter extends ClassRemapper {
 
     protected final CustomRemapper remapper;
     protected ClassRepo repo;
+    // Remapped name and descriptor of each member passed on, to rename clashes
+    private final Set<String> methods = new HashSet<String>();
+    private final Set<String> fields = new HashSet<String>();
 
     public RemappingClassAdapter(final ClassVisitor cv, final CustomRemapper remapper, ClassRepo repo,String rawClassName) {
         super(cv, remapper);
@@ -96,15 +99,11 @@ public class RemappingClassAdapter extends ClassRemapper {
             String signature, String[] exceptions) {
         String newDesc = remapper.mapMethodDesc(desc);
         String newName = remapper.mapMethodName(className, name, desc, access);
-        if (this.cv instanceof ClassNode){
-            for (MethodNode method : ((ClassNode) cv).methods) {
-                if (method.name.equals(newName) && method.desc.equals(newDesc)) {
-                    newName += "_";
+        if (!methods.add(newName + newDesc)) {
+            newName += "_";
+            methods.add(newName + newDesc);
 
-                    remapper.addMethodName(className, name, newDesc,access,newName);
-                    break;
-                }
-            }
+            remapper.addMethodName(className, name, newDesc,access,newName);
         }
         MethodVisitor mv = cv.visitMethod(access,newName , newDesc, remapper.mapSignature(
                 signature, false),
@@ -116,18 +115,15 @@ public class RemappingClassAdapter extends ClassRemapper {
     public FieldVisitor visitField(int access, String name, String desc,
             String signature, Object value) {
         String newName = remapper.mapFieldName(className, name, desc, access);
-        if (this.cv instanceof ClassNode){
-            for (FieldNode field : ((ClassNode) cv).fields) {
-                if (field.name.equals(newName) && field.desc.equals(desc)) {
-                    newName += "_";
-                    remapper.addFieldName(className, name, signature,access,newName);
-                    break;
-                }
-            }
+        String newDesc = remapper.mapDesc(desc);
+        if (!fields.add(newName + ":" + newDesc)) {
+            newName += "_";
+            fields.add(newName + ":" + newDesc);
+            remapper.addFieldName(className, name, signature,access,newName);
         }
         FieldVisitor fv = cv.visitField(access,
                 newName,
-                remapper.mapDesc(desc), remapper.mapSignature(signature, true),
+                newDesc, remapper.mapSignature(signature, true),
                 remapper.mapValue(value));
         return fv == null ? null : createFieldRemapper(fv);
     }
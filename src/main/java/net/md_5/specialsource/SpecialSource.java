@@ -32,9 +32,16 @@ import net.md_5.specialsource.util.Pair;
 import net.md_5.specialsource.util.FileLocator;
 import net.md_5.specialsource.provider.JointProvider;
 import net.md_5.specialsource.provider.JarProvider;
+import net.md_5.specialsource.repo.CachingRepo;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilderSpec;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import joptsimple.OptionException;
@@ -133,6 +140,22 @@ public class SpecialSource {
                         .ofType(Integer.class)
                         .defaultsTo(10);
                 acceptsAll(asList("stable"), "Attempts to make output stable for a given input");
+                acceptsAll(asList("threads"), "Number of threads to compare jars, or remap and compress the in-jar with")
+                        .withRequiredArg()
+                        .ofType(Integer.class)
+                        .defaultsTo(1);
+                acceptsAll(asList("flatten-inheritance"), "Precompute the full inheritance of every class in the in-jar before remapping");
+                acceptsAll(asList("stream-classes"), "Remap classes without building a class tree (class bytes may differ from the default when an access transformer is used)");
+                acceptsAll(asList("compression-level"), "Deflate level of entries written to the out-jar, from 0 to 9 (-1 for default)")
+                        .withRequiredArg()
+                        .ofType(Integer.class)
+                        .defaultsTo(-1);
+                acceptsAll(asList("store"), "Write out-jar entries uncompressed");
+                acceptsAll(asList("mapped-jars"), "Read input jars through memory-mapped files");
+                acceptsAll(asList("class-cache"), "Guava cache spec for parsed classes, e.g. maximumWeight=268435456,softValues (empty for unbounded)")
+                        .withRequiredArg()
+                        .ofType(String.class)
+                        .defaultsTo(CachingRepo.DEFAULT_CACHE_SPEC);
 
                 acceptsAll(asList("v", "version"), "Displays version information");
 
@@ -160,6 +183,16 @@ public class SpecialSource {
                         ofType(String.class).
                         defaultsTo("net/minecraft/");
 
+                acceptsAll(asList("write-binary-mappings"), "Write the loaded mappings, and any inheritance read with read-inheritance, to a binary mapping file which can be given to srg-in")
+                        .withRequiredArg()
+                        .ofType(File.class);
+
+                acceptsAll(asList("lambda-mappings"), "File to append the remapped lambda implementation methods to")
+                        .withRequiredArg()
+                        .ofType(File.class)
+                        .defaultsTo(new File("inv_dyn.srg"));
+                acceptsAll(asList("no-lambda-mappings"), "Do not record the remapped lambda implementation methods");
+
                 acceptsAll(asList("d", "identifier"), "Identifier to place on each class that is transformed, by default, none")
                         .withRequiredArg()
                         .ofType(String.class);
@@ -207,6 +240,22 @@ public class SpecialSource {
             return;
         }
 
+        int threads = (Integer) options.valueOf("threads");
+        if (threads < 1) {
+            System.err.println("Number of threads must be at least 1, not " + threads);
+            System.exit(-1);
+            return;
+        }
+
+        String classCacheSpec = (String) options.valueOf("class-cache");
+        try {
+            CacheBuilderSpec.parse(classCacheSpec);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid class cache spec: " + ex.getMessage());
+            System.exit(-1);
+            return;
+        }
+
         if (options.has("autoRemap")){
             autoRemap = true;
             autoRemapOutFile = ((File) options.valueOf("autoRemap"));
@@ -266,8 +315,9 @@ public class SpecialSource {
         if (options.has("first-jar") && options.has("second-jar")) {
             // Generate mappings from two otherwise-identical jars
             log("Reading jars");
-            jar1 = Jar.init(FileLocator.getFile((String) options.valueOf("first-jar")));
-            jar2 = Jar.init(FileLocator.getFile((String) options.valueOf("second-jar")));
+            boolean mapped = options.has("mapped-jars");
+            jar1 = Jar.init(Collections.singletonList(FileLocator.getFile((String) options.valueOf("first-jar"))), mapped);
+            jar2 = Jar.init(Collections.singletonList(FileLocator.getFile((String) options.valueOf("second-jar"))), mapped);
 
             if (jar1.getMain() == null || jar2.getMain() == null) {
                 System.err.println("Jars for comparison must both define Main-Class manifest attribute");
@@ -278,7 +328,8 @@ public class SpecialSource {
             log("Creating jar compare");
             JarComparer visitor1 = new JarComparer(jar1);
             JarComparer visitor2 = new JarComparer(jar2);
-            visit(new Pair<Jar>(jar1, jar2), new Pair<JarComparer>(visitor1, visitor2), new Pair<String>(jar1.getMain(), jar2.getMain()));
+            visit(new Pair<Jar>(jar1, jar2), new Pair<JarComparer>(visitor1, visitor2), new Pair<String>(jar1.getMain(), jar2.getMain()), threads);
+            log("Compared " + visitor1.classes.size() + " classes");
 
             jarMapping = new JarMapping(visitor1, visitor2, (File) options.valueOf("srg-out"), options.has("compact"), options.has("generate-dupes"));
             for (String pkg : excluded)
@@ -321,6 +372,7 @@ public class SpecialSource {
             inheritanceProviders.add(new ClassLoaderProvider(ClassLoader.getSystemClassLoader()));
         }
 
+        InheritanceMap readInheritance = null;
         if (options.has("read-inheritance")) {
             InheritanceMap inheritanceMap = new InheritanceMap();
 
@@ -332,6 +384,13 @@ public class SpecialSource {
             log("Loaded inheritance map for " + inheritanceMap.size() + " classes");
 
             inheritanceProviders.add(inheritanceMap);
+            readInheritance = inheritanceMap;
+        }
+
+        if (options.has("write-binary-mappings")) {
+            File binaryFile = (File) options.valueOf("write-binary-mappings");
+            BinaryMappings.write(jarMapping, readInheritance != null ? readInheritance : jarMapping.getInheritanceMap(), binaryFile);
+            log("Wrote binary mappings to " + binaryFile);
         }
 
         RemapperProcessor accessMapper = null;
@@ -350,12 +409,27 @@ public class SpecialSource {
                 files.add(FileLocator.getFile(filename));
             }
 
-            jar3 = Jar.init(files);
+            jar3 = Jar.init(files, options.has("mapped-jars"));
 
             inheritanceProviders.add(new JarProvider(jar3));
 
             log("Remapping final jar");
             JarRemapper jarRemapper = new JarRemapper(null, jarMapping, accessMapper);
+            if (autoRemap) {
+                jarRemapper.setAutoRemapAllocator(new AutoRemapAllocator(jarMapping.classes, autoRemapPrefix, autoRemapFilter));
+                if (threads > 1) {
+                    // the allocator is thread safe, but names are handed out in the order classes are encountered
+                    log("Auto remap requires ordered name allocation, remapping with a single thread");
+                    threads = 1;
+                }
+            }
+            jarRemapper.setThreads(threads);
+            jarRemapper.setClassCacheSpec(classCacheSpec);
+            jarRemapper.setFlattenInheritance(options.has("flatten-inheritance"));
+            jarRemapper.setStreaming(options.has("stream-classes"));
+            jarRemapper.setCompressionLevel((Integer) options.valueOf("compression-level"));
+            jarRemapper.setStoreEntries(options.has("store"));
+            jarRemapper.setLambdaMappingsFile(options.has("no-lambda-mappings") ? null : (File) options.valueOf("lambda-mappings"));
             jarRemapper.remapJar(jar3, (File) options.valueOf("out-jar"), new HashSet<>((List<String>) options.valuesOf("only")));
         }
 
@@ -387,27 +461,69 @@ public class SpecialSource {
         }
     }
 
-    private static void visit(Pair<Jar> jars, Pair<JarComparer> visitors, Pair<String> classes) throws IOException {
+    /**
+     * Compare two jars class by class, starting from their main classes and
+     * following the classes each refers to, pairing them by the order they
+     * were found in. Classes are scanned on a pool of threads, but their
+     * results are merged in discovery order, so the outcome is the same as
+     * scanning them one at a time.
+     */
+    private static void visit(final Pair<Jar> jars, final Pair<JarComparer> visitors, Pair<String> mains, int threads) throws IOException {
         JarComparer visitor1 = visitors.first;
         JarComparer visitor2 = visitors.second;
 
-        ClassReader clazz1, clazz2;
-        try (InputStream first = jars.first.getClass(classes.first);
-             InputStream second = jars.second.getClass(classes.second)) {
-            clazz1 = new ClassReader(first);
-            clazz2 = new ClassReader(second);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<Pair<JarComparer.Scan>>> pending = new ArrayDeque<Future<Pair<JarComparer.Scan>>>();
+            pending.add(executor.submit(() -> scan(jars, visitors, mains)));
+            int submitted = visitor1.iterDepth;
+            boolean main = true;
+
+            while (!pending.isEmpty()) {
+                Pair<JarComparer.Scan> scans = await(pending.poll());
+                visitor1.merge(scans.first);
+                visitor2.merge(scans.second);
+                validate(visitor1, visitor2);
+                if (!main) {
+                    visitor1.iterDepth++;
+                }
+                main = false;
+
+                // Classes found so far can be scanned while earlier ones are merged
+                while (submitted < visitor1.classes.size() && pending.size() < threads * 4) {
+                    final Pair<String> pair = new Pair<String>(visitor1.classes.get(submitted), visitor2.classes.get(submitted));
+                    submitted++;
+                    pending.add(executor.submit(() -> scan(jars, visitors, pair)));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
-        clazz1.accept(visitor1, 0);
-        clazz2.accept(visitor2, 0);
+    }
+
+    private static Pair<JarComparer.Scan> scan(Pair<Jar> jars, Pair<JarComparer> visitors, Pair<String> classes) throws IOException {
+        return new Pair<JarComparer.Scan>(
+                visitors.first.scan(readClass(jars.first, classes.first)),
+                visitors.second.scan(readClass(jars.second, classes.second)));
+    }
 
-        validate(visitor1, visitor2);
+    private static ClassReader readClass(Jar jar, String name) throws IOException {
+        ClassData data = jar.getClassData(name);
+        if (data == null) {
+            throw new IOException("Class not found: " + name);
+        }
+        return new ClassReader(data.getBytes());
+    }
 
-        while (visitor1.iterDepth < visitor1.classes.size()) {
-            String className1 = visitor1.classes.get(visitor1.iterDepth);
-            String className2 = visitor2.classes.get(visitor1.iterDepth);
-            Pair<String> pair = new Pair<String>(className1, className2);
-            visitor1.iterDepth++;
-            visit(jars, visitors, pair);
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while comparing jars");
+        } catch (ExecutionException ex) {
+            Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+            throw new RuntimeException(ex.getCause());
         }
     }
 
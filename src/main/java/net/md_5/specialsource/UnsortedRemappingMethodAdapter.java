@@ -28,36 +28,19 @@
  */
 package net.md_5.specialsource;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.Collection;
 
 import com.google.common.base.Preconditions;
 import net.md_5.specialsource.repo.ClassRepo;
-import net.md_5.specialsource.repo.RuntimeRepo;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.MethodRemapper;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.FieldNode;
-import org.objectweb.asm.tree.MethodNode;
 
 public class UnsortedRemappingMethodAdapter extends MethodRemapper {
 
-    private final PrintWriter writer;
-
-    {
-        try {
-            writer = new PrintWriter(new FileWriter("inv_dyn.srg",true),true);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private static final Collection<Handle> META_FACTORIES = Arrays.asList(
             new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
                     "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false),
@@ -83,43 +66,18 @@ public class UnsortedRemappingMethodAdapter extends MethodRemapper {
                 remapper.mapDesc(desc));
     }
 
-    private int findAccess(NodeType type, String owner, String name, String desc, ClassRepo repo) {
-        int access = -1;
-        if (repo != null) {
-            ClassNode clazz = classRepo.findClass(owner);
-            if (clazz != null) {
-                switch (type) {
-                    case FIELD:
-                        for (FieldNode f : clazz.fields) {
-                            if (f.name.equals(name) && f.desc.equals(desc)) {
-                                access = f.access;
-                                break;
-                            }
-                        }
-                        break;
-                    case METHOD:
-                        for (MethodNode m : classRepo.findClass(owner).methods) {
-                            if (m.name.equals(name) && m.desc.equals(desc)) {
-                                access = m.access;
-                                break;
-                            }
-                        }
-                        break;
-                }
-            }
-        }
-
-        return access;
-    }
-
+    /**
+     * Find the access flags of a member of the given class, from the jar
+     * being remapped or else from the runtime classpath.
+     *
+     * @return the access flags, or -1 if unknown
+     */
     public int findAccess(NodeType type, String owner, String name, String desc) {
-        int access;
-        access = findAccess(type, owner, name, desc, classRepo);
-        if (access == -1) {
-            access = findAccess(type, owner, name, desc, RuntimeRepo.getInstance());
+        if (classRepo != null && classRepo.containsClass(owner)) {
+            return classRepo.findAccess(type, owner, name, desc);
         }
 
-        return access;
+        return remapper.getRuntimeRepo().findAccess(type, owner, name, desc);
     }
 
     @Override
@@ -139,9 +97,8 @@ public class UnsortedRemappingMethodAdapter extends MethodRemapper {
             String odesc = ((Type) bsmArgs[0]).getDescriptor(); // First constant argument is "samMethodType - Signature and return type of method to be implemented by the function object."
             // index 2 is the signature, but with generic types. Should we use that instead?
             name = remapper.mapMethodName(owner, name, odesc, findAccess(NodeType.METHOD, owner, name, odesc));
-                Handle bsmArg = ((Handle) bsmArgs[1]);
-                Handle mapped = (Handle) remapper.mapValue(bsmArg);
-            writer.println("MD: " + (bsmArg.getOwner() + "/" +bsmArg.getName() + " " + bsmArg.getDesc() + mapped.getOwner() + "/" +mapped.getName() + " " + mapped.getDesc()));
+            Handle bsmArg = ((Handle) bsmArgs[1]);
+            remapper.addLambdaMapping(bsmArg, (Handle) remapper.mapValue(bsmArg));
         } else {
             name = remapper.mapInvokeDynamicMethodName(name, desc);
         }
@@ -168,10 +125,4 @@ public class UnsortedRemappingMethodAdapter extends MethodRemapper {
                 remapper.mapMethodDesc(desc), (Handle) remapper.mapValue(bsm),
                 bsmArgs);
     }
-
-    @Override
-    public void visitEnd() {
-        super.visitEnd();
-        this.writer.close();
-    }
 }
@@ -29,13 +29,11 @@
 package net.md_5.specialsource.provider;
 
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.tree.ClassNode;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.List;
 import lombok.RequiredArgsConstructor;
 
 /**
@@ -47,7 +45,6 @@ public class ClassLoaderProvider implements InheritanceProvider {
     private final ClassLoader classLoader;
 
     @Override
-    @SuppressWarnings("unchecked")
     public Collection<String> getParents(String owner) {
         // TODO: ToInternalName
         String ownerInternalName = owner.replace('.', '/').concat(".class");
@@ -57,16 +54,15 @@ public class ClassLoaderProvider implements InheritanceProvider {
                 return null;
             }
 
+            // Only the header is needed, so the class is not visited
             ClassReader cr = new ClassReader(input);
-            ClassNode node = new ClassNode();
-            cr.accept(node, 0);
 
             Collection<String> parents = new HashSet<String>();
-            for (String iface : node.interfaces) {
+            for (String iface : cr.getInterfaces()) {
                 parents.add(iface);
             }
-            if (node.superName != null) {
-                parents.add(node.superName);
+            if (cr.getSuperName() != null) {
+                parents.add(cr.getSuperName());
             }
 
             return parents;
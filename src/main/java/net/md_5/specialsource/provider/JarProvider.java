@@ -28,13 +28,11 @@
  */
 package net.md_5.specialsource.provider;
 
-import org.objectweb.asm.tree.ClassNode;
-
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
+import net.md_5.specialsource.ClassData;
 import net.md_5.specialsource.Jar;
 
 /**
@@ -47,21 +45,8 @@ public class JarProvider implements InheritanceProvider {
     private final Jar self;
 
     @Override
-    @SuppressWarnings("unchecked")
     public Collection<String> getParents(String owner) {
-        ClassNode node = self.getNode(owner);
-        if (node == null) {
-            return null;
-        }
-
-        Collection<String> parents = new ArrayList<String>();
-        for (String iface : node.interfaces) {
-            parents.add(iface);
-        }
-        if (node.superName != null) {
-            parents.add(node.superName);
-        }
-
-        return parents;
+        ClassData data = self.getClassData(owner);
+        return data == null ? null : new ArrayList<String>(data.getParents());
     }
 }
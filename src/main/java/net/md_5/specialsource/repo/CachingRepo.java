@@ -28,29 +28,199 @@
  */
 package net.md_5.specialsource.repo;
 
+import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import net.md_5.specialsource.ClassData;
+import net.md_5.specialsource.NodeType;
 import org.objectweb.asm.tree.ClassNode;
 
 public abstract class CachingRepo implements ClassRepo {
 
-    private final Cache<String, ClassNode> cache = CacheBuilder.newBuilder().maximumSize(4096).build();
+    // Cached for classes which could not be found, so they are only looked up once
+    private static final ClassData MISSING = new ClassData(new ClassNode());
+    /**
+     * The class cache policy of repositories made without one, keeping up to
+     * 4096 classes.
+     */
+    public static final String DEFAULT_CACHE_SPEC = "maximumSize=4096";
+    private final Cache<String, ClassData> cache;
+    private final AtomicLong memberHits = new AtomicLong();
+    private final AtomicLong memberMisses = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong sharedLoads = new AtomicLong();
+    // Loads under way, so that concurrent requests for a class share one
+    private final ConcurrentMap<String, FutureTask<ClassData>> loading = new ConcurrentHashMap<String, FutureTask<ClassData>>();
+
+    protected CachingRepo() {
+        this(DEFAULT_CACHE_SPEC);
+    }
+
+    /**
+     * Make a repository whose class cache follows the given policy, as a
+     * {@link CacheBuilderSpec}. The cache alone holds the classes this
+     * repository loads, so the policy bounds how long they are kept. A
+     * maximumWeight is counted in bytes of class file, and softValues or
+     * weakValues let the garbage collector drop classes. An empty spec keeps
+     * every class, for batch runs with the memory to spare.
+     *
+     * @throws IllegalArgumentException if the spec cannot be parsed
+     */
+    protected CachingRepo(String cacheSpec) {
+        this.cache = buildCache(cacheSpec);
+    }
+
+    private static Cache<String, ClassData> buildCache(String spec) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.from(spec).recordStats();
+        if (spec.contains("maximumWeight")) {
+            return builder.weigher((String name, ClassData data) -> data.estimateSize()).build();
+        }
+        return builder.build();
+    }
 
     @Override
     public final ClassNode findClass(String internalName) {
-        ClassNode fromCache = cache.getIfPresent(internalName);
+        ClassData cached = findCached(internalName);
+        return cached == null ? null : cached.getNode();
+    }
+
+    @Override
+    public final boolean containsClass(String internalName) {
+        return findCached(internalName) != null;
+    }
+
+    /**
+     * Find the access flags of a member through an index built once per
+     * cached class, rather than scanning its fields or methods.
+     */
+    @Override
+    public final int findAccess(NodeType type, String owner, String name, String desc) {
+        ClassData cached = findCached(owner);
+        Integer access = (cached == null) ? null : cached.getAccess(type, name, desc);
+        if (access == null) {
+            memberMisses.incrementAndGet();
+            return -1;
+        }
+
+        memberHits.incrementAndGet();
+        return access;
+    }
+
+    /**
+     * Number of {@link #findAccess} lookups which found the member.
+     */
+    public long getMemberHits() {
+        return memberHits.get();
+    }
+
+    /**
+     * Number of {@link #findAccess} lookups for an unknown class or member.
+     */
+    public long getMemberMisses() {
+        return memberMisses.get();
+    }
+
+    /**
+     * Hits, misses and evictions of the class cache.
+     */
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Total time spent finding classes which were not cached, in
+     * nanoseconds.
+     */
+    public long getLoadTime() {
+        return loadNanos.get();
+    }
+
+    /**
+     * Number of requests which waited for another thread to load a class,
+     * instead of loading it again.
+     */
+    public long getSharedLoads() {
+        return sharedLoads.get();
+    }
+
+    /**
+     * Describe the use of the class cache, for logging.
+     */
+    public String getCacheSummary() {
+        CacheStats stats = cache.stats();
+        return String.format("%d hits, %d misses (%.1f%%), %d evictions, %.2fs loading, %d loads shared",
+                stats.hitCount(), stats.missCount(), stats.hitRate() * 100, stats.evictionCount(), loadNanos.get() / 1e9, sharedLoads.get());
+    }
+
+    /**
+     * Find a class in the cache, or else load it. Threads asking for the same
+     * class while it is being loaded wait for that load rather than starting
+     * their own.
+     */
+    private ClassData findCached(String internalName) {
+        ClassData fromCache = cache.getIfPresent(internalName);
         if (fromCache != null) {
-            return fromCache;
+            return fromCache == MISSING ? null : fromCache;
         }
 
-        ClassNode found = findClass0(internalName);
-        if (found != null) {
-            cache.put(internalName, found);
-            return found;
+        FutureTask<ClassData> task = new FutureTask<ClassData>(() -> {
+            // Another thread may have loaded the class since this one missed,
+            // and finished before this task could be registered
+            ClassData loaded = cache.asMap().get(internalName);
+            return loaded != null ? loaded : load(internalName);
+        });
+        FutureTask<ClassData> inFlight = loading.putIfAbsent(internalName, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                // Only once the result is cached, so no thread can miss both
+                loading.remove(internalName, task);
+            }
+        } else {
+            sharedLoads.incrementAndGet();
         }
 
-        return null;
+        ClassData found;
+        try {
+            found = Uninterruptibles.getUninterruptibly(inFlight);
+        } catch (ExecutionException ex) {
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new RuntimeException(ex.getCause());
+        }
+        return found == MISSING ? null : found;
+    }
+
+    private ClassData load(String internalName) {
+        long start = System.nanoTime();
+        ClassData found = findClassData0(internalName);
+        loadNanos.addAndGet(System.nanoTime() - start);
+
+        if (found == null) {
+            found = MISSING;
+        }
+        cache.put(internalName, found);
+        return found;
     }
 
     protected abstract ClassNode findClass0(String internalName);
+
+    /**
+     * Find a class to cache. Repositories which can read class files
+     * themselves may override this, so that member lookups do not need the
+     * class to be fully parsed.
+     */
+    protected ClassData findClassData0(String internalName) {
+        ClassNode node = findClass0(internalName);
+        return node == null ? null : new ClassData(node);
+    }
 }
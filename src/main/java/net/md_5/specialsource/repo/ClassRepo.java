@@ -28,9 +28,49 @@
  */
 package net.md_5.specialsource.repo;
 
+import net.md_5.specialsource.NodeType;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
 
 public interface ClassRepo {
 
     ClassNode findClass(String internalName);
+
+    /**
+     * Check whether the given class can be found, without necessarily
+     * parsing it.
+     */
+    default boolean containsClass(String internalName) {
+        return findClass(internalName) != null;
+    }
+
+    /**
+     * Find the access flags of a field or method declared by the given class.
+     *
+     * @return the access flags, or -1 if the class or member is not known
+     */
+    default int findAccess(NodeType type, String owner, String name, String desc) {
+        ClassNode clazz = findClass(owner);
+        if (clazz != null) {
+            switch (type) {
+                case FIELD:
+                    for (FieldNode f : clazz.fields) {
+                        if (f.name.equals(name) && f.desc.equals(desc)) {
+                            return f.access;
+                        }
+                    }
+                    break;
+                case METHOD:
+                    for (MethodNode m : clazz.methods) {
+                        if (m.name.equals(name) && m.desc.equals(desc)) {
+                            return m.access;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        return -1;
+    }
 }
@@ -28,17 +28,47 @@
  */
 package net.md_5.specialsource.repo;
 
-import lombok.RequiredArgsConstructor;
+import java.io.IOException;
+import net.md_5.specialsource.ClassData;
 import net.md_5.specialsource.Jar;
 import org.objectweb.asm.tree.ClassNode;
 
-@RequiredArgsConstructor
 public class JarRepo extends CachingRepo {
 
     private final Jar jar;
 
+    public JarRepo(Jar jar) {
+        this.jar = jar;
+    }
+
+    /**
+     * Make a repository of the classes in a jar, cached as the given
+     * {@link CachingRepo#CachingRepo(String) policy} says.
+     */
+    public JarRepo(Jar jar, String cacheSpec) {
+        super(cacheSpec);
+        this.jar = jar;
+    }
+
     @Override
     protected ClassNode findClass0(String internalName) {
-        return jar.getNode(internalName);
+        ClassData data = findClassData0(internalName);
+        return data == null ? null : data.getNode();
+    }
+
+    /**
+     * Read the class from the jar, rather than sharing the classes the jar
+     * caches itself, so that only the cache of this repository holds it.
+     */
+    @Override
+    protected ClassData findClassData0(String internalName) {
+        byte[] bytes;
+        try {
+            bytes = jar.getClassBytes(internalName);
+        } catch (IOException ex) {
+            // Wrap this in a runtime exception so it can conform easily to interfaces
+            throw new RuntimeException(internalName, ex);
+        }
+        return bytes == null ? null : new ClassData(bytes);
     }
 }
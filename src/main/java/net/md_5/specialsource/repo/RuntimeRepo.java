@@ -29,18 +29,46 @@
 package net.md_5.specialsource.repo;
 
 import java.io.IOException;
-import lombok.AccessLevel;
+import java.io.InputStream;
+import com.google.common.io.ByteStreams;
 import lombok.Getter;
-import lombok.NoArgsConstructor;
+import net.md_5.specialsource.ClassData;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.ClassNode;
 
-@NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class RuntimeRepo extends CachingRepo {
 
+    /**
+     * The repository shared by remappers which have not been given their own,
+     * with the default cache policy.
+     */
     @Getter
     private static final RuntimeRepo instance = new RuntimeRepo();
 
+    private RuntimeRepo() {
+    }
+
+    /**
+     * Make a repository of the runtime classpath, cached as the given
+     * {@link CachingRepo#CachingRepo(String) policy} says.
+     */
+    public RuntimeRepo(String cacheSpec) {
+        super(cacheSpec);
+    }
+
+    /**
+     * Read the class file without parsing it, so that access lookups only
+     * read its member table.
+     */
+    @Override
+    protected ClassData findClassData0(String internalName) {
+        try (InputStream is = ClassLoader.getSystemResourceAsStream(internalName + ".class")) {
+            return is == null ? null : new ClassData(ByteStreams.toByteArray(is));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
     @Override
     protected ClassNode findClass0(String internalName) {
         ClassReader cr;
@@ -29,6 +29,8 @@
 package net.md_5.specialsource.transformer;
 
 import java.util.*;
+import net.md_5.specialsource.util.PrefixMap;
+import net.md_5.specialsource.util.PrefixTrie;
 
 /**
  * Simulate a small subset of the maven-shade-plugin class relocation
@@ -36,7 +38,7 @@ import java.util.*;
  */
 public class MavenShade extends MappingTransformer {
 
-    public LinkedHashMap<String, String> relocations = new LinkedHashMap<String, String>();
+    public PrefixMap<String> relocations = new PrefixMap<String>();
     // No relocations
     public static final MavenShade IDENTITY = new MavenShade();
 
@@ -79,16 +81,14 @@ public class MavenShade extends MappingTransformer {
 
     @Override
     public String transformClassName(String className) {
-        for (Map.Entry<String, String> entry : relocations.entrySet()) {
-            String pattern = entry.getKey();
-            String shadedPattern = entry.getValue();
-
-            // Match the pattern.. currently, only _exact prefixes_ and replacements are supported
-            if (className.startsWith(toInternalName(pattern))) { // TODO: regex support?
-                String newClassName = toInternalName(shadedPattern) + className.substring(pattern.length());
+        // Match the pattern.. currently, only _exact prefixes_ and replacements are supported
+        PrefixTrie trie = relocations.getTrie(); // TODO: regex support?
+        int match = trie.find(className);
+        if (match != -1) {
+            String pattern = trie.getPrefix(match);
+            String shadedPattern = relocations.get(pattern);
 
-                return newClassName;
-            }
+            return shadedPattern + className.substring(pattern.length());
         }
 
         return className;
@@ -33,6 +33,14 @@ import net.md_5.specialsource.JarRemapper;
 
 public class MethodDescriptor {
 
+    // Reused between calls, only the final string is allocated for each descriptor
+    private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
     private Map<String, String> packageMap;
     private Map<String, String> classMap;
 
@@ -41,27 +49,38 @@ public class MethodDescriptor {
         this.classMap = classMap;
     }
 
+    /**
+     * Remap the classes in a method or field descriptor. Apart from the class
+     * names looked up, only the result is allocated, and the input itself is
+     * returned if no class is remapped.
+     */
     public String transform(String input) {
-        StringBuilder output = new StringBuilder();
+        StringBuilder output = null; // started on the first remapped class
+        int copied = 0; // end of the input already copied to the output
 
-        int i = 0;
-        while (i < input.length()) {
+        int length = input.length();
+        for (int i = 0; i < length; i++) {
             char c = input.charAt(i);
 
             switch (c) {
                 // class
                 case 'L':
-                    String rest = input.substring(i);
-                    int end = rest.indexOf(';');
+                    int end = input.indexOf(';', i + 1);
                     if (end == -1) {
                         throw new IllegalArgumentException("Invalid method descriptor, found L but missing ;: " + input);
                     }
-                    String className = rest.substring(1, end);
-                    i += className.length() + 1;
+                    String className = input.substring(i + 1, end);
 
                     String newClassName = JarRemapper.mapTypeName(className, packageMap, classMap, className);
-
-                    output.append("L").append(newClassName).append(";");
+                    if (newClassName != className) {
+                        if (output == null) {
+                            output = BUILDER.get();
+                            output.setLength(0);
+                        }
+                        output.append(input, copied, i + 1).append(newClassName);
+                        copied = end;
+                    }
+                    i = end;
                     break;
 
                 // primitive type
@@ -81,7 +100,6 @@ public class MethodDescriptor {
 
                 // array
                 case '[':
-                    output.append(c);
                     break;
 
                 case 'T':
@@ -99,10 +117,11 @@ public class MethodDescriptor {
                 default:
                     throw new IllegalArgumentException("Unrecognized type in method descriptor: " + c);
             }
-
-            i += 1;
         }
 
-        return output.toString();
+        if (output == null) {
+            return input;
+        }
+        return output.append(input, copied, length).toString();
     }
 }
@@ -29,48 +29,106 @@
 package net.md_5.specialsource.util;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * A pseudo class implementing the {@link List} like, but does not allow
- * duplicates. Is backed by an {@link ArrayList} and {@link HashSet} for speedy
- * contains lookups.
+ * duplicates. Is backed by an {@link ArrayList} and {@link HashMap} of each
+ * element's position for speedy contains lookups and removal.
+ *
+ * Removed elements leave a marker in the backing list, which is compacted
+ * when elements are next got by index, so removing is constant time however
+ * long the list is.
  *
  * @param <E> the type of elements contained in this 'list'
  */
 public class NoDupeList<E> implements Iterable<E> {
 
-    private final Set<E> set = new HashSet<E>();
-    private final List<E> backing = new ArrayList<E>();
+    private static final Object REMOVED = new Object();
+    private final Map<E, Integer> positions = new HashMap<E, Integer>();
+    private final List<Object> backing = new ArrayList<Object>();
 
     public boolean add(E e) {
-        if (set.contains(e)) {
+        if (positions.containsKey(e)) {
             return false;
         } else {
-            set.add(e);
+            positions.put(e, backing.size());
             backing.add(e);
             return true;
         }
     }
 
+    @SuppressWarnings("unchecked")
     public E get(int index) {
-        return backing.get(index);
+        if (backing.size() != positions.size()) {
+            compact();
+        }
+        return (E) backing.get(index);
     }
 
     public int size() {
-        return backing.size();
+        return positions.size();
+    }
+
+    public boolean contains(E e) {
+        return positions.containsKey(e);
     }
 
     public void remove(E e) {
-        set.remove(e);
-        backing.remove(e);
+        Integer position = positions.remove(e);
+        if (position != null) {
+            backing.set(position, REMOVED);
+        }
+    }
+
+    /**
+     * Drop the markers of removed elements, so that each element is at its
+     * index.
+     */
+    @SuppressWarnings("unchecked")
+    private void compact() {
+        int n = 0;
+        for (int i = 0; i < backing.size(); i++) {
+            Object e = backing.get(i);
+            if (e != REMOVED) {
+                positions.put((E) e, n);
+                backing.set(n++, e);
+            }
+        }
+        backing.subList(n, backing.size()).clear();
     }
 
     @Override
     public Iterator<E> iterator() {
-        return backing.iterator();
+        return new Iterator<E>() {
+            private int next = skip(0);
+
+            private int skip(int i) {
+                while (i < backing.size() && backing.get(i) == REMOVED) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < backing.size();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                E e = (E) backing.get(next);
+                next = skip(next + 1);
+                return e;
+            }
+        };
     }
 }
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource.util;
+
+import com.google.common.base.Preconditions;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Ordered map of name prefixes, which keeps a {@link PrefixTrie} of its keys
+ * for finding the first one a name starts with. The trie is rebuilt on the
+ * next lookup after the map is changed. The key, value and entry views are
+ * read-only, so all changes go through the map itself, and the whole map
+ * can be made read-only too.
+ */
+public class PrefixMap<V> extends LinkedHashMap<String, V> {
+
+    private static final long serialVersionUID = 1L;
+    private transient volatile PrefixTrie trie;
+    private transient volatile boolean readOnly;
+
+    /**
+     * Get the trie of the keys of this map, in insertion order.
+     */
+    public PrefixTrie getTrie() {
+        PrefixTrie result = trie;
+        if (result == null) {
+            trie = result = new PrefixTrie(keySet());
+        }
+        return result;
+    }
+
+    /**
+     * Make this map read-only, or writable again. Changing a read-only map
+     * throws {@link IllegalStateException}.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Called before every change to this map.
+     */
+    private void modified() {
+        Preconditions.checkState(!readOnly, "Cannot change a read-only map");
+        trie = null;
+    }
+
+    @Override
+    public V put(String key, V value) {
+        modified();
+        return super.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends V> m) {
+        modified();
+        super.putAll(m);
+    }
+
+    @Override
+    public V putIfAbsent(String key, V value) {
+        modified();
+        return super.putIfAbsent(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        modified();
+        return super.remove(key);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        modified();
+        return super.remove(key, value);
+    }
+
+    @Override
+    public V replace(String key, V value) {
+        modified();
+        return super.replace(key, value);
+    }
+
+    @Override
+    public boolean replace(String key, V oldValue, V newValue) {
+        modified();
+        return super.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super String, ? super V, ? extends V> function) {
+        modified();
+        super.replaceAll(function);
+    }
+
+    @Override
+    public V computeIfAbsent(String key, Function<? super String, ? extends V> mappingFunction) {
+        modified();
+        return super.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public V computeIfPresent(String key, BiFunction<? super String, ? super V, ? extends V> remappingFunction) {
+        modified();
+        return super.computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public V compute(String key, BiFunction<? super String, ? super V, ? extends V> remappingFunction) {
+        modified();
+        return super.compute(key, remappingFunction);
+    }
+
+    @Override
+    public V merge(String key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        modified();
+        return super.merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public void clear() {
+        modified();
+        super.clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(super.keySet());
+    }
+
+    @Override
+    public Collection<V> values() {
+        return Collections.unmodifiableCollection(super.values());
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        final Set<Map.Entry<String, V>> entries = super.entrySet();
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                final Iterator<Map.Entry<String, V>> it = entries.iterator();
+                return new Iterator<Map.Entry<String, V>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, V> next() {
+                        return new AbstractMap.SimpleImmutableEntry<String, V>(it.next());
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return entries.contains(o);
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Finds which of a list of prefixes a name starts with, keeping the meaning
+ * of checking each prefix in order with {@link String#startsWith}: of all
+ * prefixes matching a name, the one earliest in the list wins.
+ *
+ * Prefixes are walked a character at a time rather than a package at a
+ * time, as package and relocation rules do not always end on a '/'. A
+ * lookup costs at most one step per character of the name, no matter how
+ * many prefixes there are. Safe for use from many threads once built.
+ */
+public class PrefixTrie {
+
+    private final Node root = new Node();
+    private final List<String> prefixes = new ArrayList<String>();
+
+    /**
+     * @param prefixes Prefixes in order of precedence, repeats are ignored
+     */
+    public PrefixTrie(Collection<String> prefixes) {
+        for (String prefix : prefixes) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrAddChild(prefix.charAt(i));
+            }
+            if (node.index == -1) {
+                node.index = this.prefixes.size();
+                this.prefixes.add(prefix);
+            }
+        }
+        root.computeFirst();
+    }
+
+    /**
+     * Find the earliest prefix which the name starts with.
+     *
+     * @return the index of the prefix, or -1 if none match
+     */
+    public int find(String name) {
+        Node node = root;
+        int best = node.index;
+        for (int i = 0; i < name.length(); i++) {
+            if (best != -1 && node.first >= best) {
+                break; // nothing further down can come before what we have
+            }
+            node = node.getChild(name.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.index != -1 && (best == -1 || node.index < best)) {
+                best = node.index;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Get the index of an exact prefix, or -1 if it is not in this trie.
+     */
+    public int indexOf(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.getChild(prefix.charAt(i));
+        }
+        return node == null ? -1 : node.index;
+    }
+
+    public String getPrefix(int index) {
+        return prefixes.get(index);
+    }
+
+    public int size() {
+        return prefixes.size();
+    }
+
+    private static class Node {
+
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        private int index = -1;
+        // lowest prefix index at or below this node
+        private int first;
+
+        private Node getChild(char c) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node getOrAddChild(char c) {
+            Node child = getChild(c);
+            if (child == null) {
+                child = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+
+        private int computeFirst() {
+            first = (index == -1) ? Integer.MAX_VALUE : index;
+            for (Node child : children) {
+                first = Math.min(first, child.computeFirst());
+            }
+            return first;
+        }
+    }
+}
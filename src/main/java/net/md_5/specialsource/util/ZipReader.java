@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Reads a zip file through a memory map. The central directory is parsed
+ * once into an index of where each entry's header is, and entry data is
+ * handed out as slices of the map, so that reads are cheap and may be made
+ * from any thread.
+ *
+ * Only plain archives of up to 2 GB are supported: larger files, Zip64
+ * archives and encrypted entries are rejected with a {@link ZipException},
+ * and should be read through {@link java.util.zip.ZipFile} instead.
+ */
+public class ZipReader implements Closeable {
+
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_HEADER = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_HEADER_SIZE = 22;
+    static final int FLAG_ENCRYPTED = 1;
+    static final int FLAG_UTF8 = 1 << 11;
+    // Inflaters hold native memory, so are reused by each thread rather than made per entry
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final ByteBuffer map;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    public ZipReader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ZipException("Too large to map: " + file);
+            }
+            // The mapping stays valid once the channel is closed, and is released when collected
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        readCentralDirectory(file);
+    }
+
+    private void readCentralDirectory(File file) throws IOException {
+        // The end record is followed by a comment of at most 65535 bytes
+        int size = map.capacity();
+        int end = -1;
+        for (int i = size - END_HEADER_SIZE; i >= Math.max(0, size - END_HEADER_SIZE - 0xFFFF); i--) {
+            if (map.getInt(i) == END_HEADER) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("No end of central directory in " + file);
+        }
+
+        int count = map.getShort(end + 10) & 0xFFFF;
+        long directoryOffset = map.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported: " + file);
+        }
+        if (directoryOffset > end) {
+            throw new ZipException("Bad central directory offset in " + file);
+        }
+
+        int pos = (int) directoryOffset;
+        for (int i = 0; i < count; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > end || map.getInt(pos) != CENTRAL_HEADER) {
+                throw new ZipException("Bad central directory entry in " + file);
+            }
+            int flags = map.getShort(pos + 8) & 0xFFFF;
+            int nameLength = map.getShort(pos + 28) & 0xFFFF;
+            int extraLength = map.getShort(pos + 30) & 0xFFFF;
+            int commentLength = map.getShort(pos + 32) & 0xFFFF;
+            // The directory lies before the end record, so this cannot overflow
+            int next = pos + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > end) {
+                throw new ZipException("Bad central directory entry in " + file);
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer name = map.duplicate();
+            name.position(pos + CENTRAL_HEADER_SIZE);
+            name.get(nameBytes);
+            Entry entry = new Entry(new String(nameBytes, StandardCharsets.UTF_8), pos);
+
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                throw new ZipException("Encrypted entries are not supported: " + entry.name);
+            }
+            if (entry.getCompressedSize() == 0xFFFFFFFFL || entry.getSize() == 0xFFFFFFFFL || entry.getLocalHeaderOffset() == 0xFFFFFFFFL) {
+                throw new ZipException("Zip64 entries are not supported: " + entry.name);
+            }
+            if (entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE > size) {
+                throw new ZipException("Bad local header offset for " + entry.name);
+            }
+
+            // Later entries of the same name win, as with ZipFile
+            entries.put(entry.name, entry);
+            pos = next;
+        }
+    }
+
+    /**
+     * Get an entry by name.
+     *
+     * @return the entry, or null if there is none of that name
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Get the names of all entries, in central directory order.
+     */
+    public Set<String> getEntryNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    @Override
+    public void close() throws IOException {
+        entries.clear();
+    }
+
+    /**
+     * A file in the archive, read from its central directory header on
+     * demand.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public class Entry {
+
+        @Getter
+        private final String name;
+        // Position of the central directory header
+        private final int central;
+        private volatile int dataOffset = -1;
+
+        public int getMethod() {
+            return map.getShort(central + 10) & 0xFFFF;
+        }
+
+        public int getCrc() {
+            return map.getInt(central + 16);
+        }
+
+        public long getCompressedSize() {
+            return map.getInt(central + 20) & 0xFFFFFFFFL;
+        }
+
+        public long getSize() {
+            return map.getInt(central + 24) & 0xFFFFFFFFL;
+        }
+
+        public long getLocalHeaderOffset() {
+            return map.getInt(central + 42) & 0xFFFFFFFFL;
+        }
+
+        /**
+         * Get the position of the stored data in the file, which follows the
+         * variable length local header.
+         */
+        public int getDataOffset() throws IOException {
+            int result = dataOffset;
+            if (result == -1) {
+                int header = (int) getLocalHeaderOffset();
+                if (header + LOCAL_HEADER_SIZE > map.capacity() || map.getInt(header) != LOCAL_HEADER) {
+                    throw new ZipException("Bad local header for " + name);
+                }
+                int nameLength = map.getShort(header + 26) & 0xFFFF;
+                int extraLength = map.getShort(header + 28) & 0xFFFF;
+                dataOffset = result = header + LOCAL_HEADER_SIZE + nameLength + extraLength;
+            }
+            return result;
+        }
+
+        /**
+         * Get the stored, possibly compressed, data of this entry as a slice
+         * of the map.
+         */
+        public ByteBuffer getStoredData() throws IOException {
+            int start = getDataOffset();
+            long length = getCompressedSize();
+            if (start + length > map.capacity()) {
+                throw new ZipException("Unexpected end of zip file reading " + name);
+            }
+            ByteBuffer data = map.duplicate();
+            data.position(start);
+            data.limit(start + (int) length);
+            return data.slice();
+        }
+
+        /**
+         * Get the uncompressed data of this entry. Stored entries are a
+         * read-only slice of the map, others are inflated into a new buffer.
+         */
+        public ByteBuffer getData() throws IOException {
+            ByteBuffer stored = getStoredData();
+            switch (getMethod()) {
+                case ZipEntry.STORED:
+                    return stored.asReadOnlyBuffer();
+                case ZipEntry.DEFLATED:
+                    return ByteBuffer.wrap(inflate(stored));
+                default:
+                    throw new ZipException("Unsupported compression method " + getMethod() + " for " + name);
+            }
+        }
+
+        private byte[] inflate(ByteBuffer stored) throws IOException {
+            // An extra byte of input is needed when inflating without the zlib wrapper
+            byte[] input = new byte[stored.remaining() + 1];
+            stored.get(input, 0, input.length - 1);
+            byte[] output = new byte[(int) getSize()];
+
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(input);
+            try {
+                int n = 0;
+                while (n < output.length) {
+                    int read = inflater.inflate(output, n, output.length - n);
+                    if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += read;
+                }
+                if (n != output.length) {
+                    throw new ZipException("Truncated data for " + name);
+                }
+            } catch (DataFormatException ex) {
+                throw new ZipException("Bad compressed data for " + name + ": " + ex.getMessage());
+            }
+            return output;
+        }
+
+        /**
+         * Copy the stored, still compressed, data of this entry.
+         */
+        public void transferTo(WritableByteChannel target) throws IOException {
+            ByteBuffer data = getStoredData();
+            while (data.hasRemaining()) {
+                target.write(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) 2012, md_5. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * The name of the author may not be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.md_5.specialsource.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import com.google.common.base.Preconditions;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+
+import static net.md_5.specialsource.util.ZipReader.*;
+
+/**
+ * Writes a zip file whose entries are either compressed here, or copied
+ * still compressed from a {@link ZipReader}. Sizes and checksums are always
+ * known up front, so no data descriptors are written. Copied entries keep the
+ * method they were stored with, whatever the level or method set here.
+ */
+public class ZipWriter implements Closeable {
+
+    private static final int ZIP64_END_HEADER = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(0x10000 + 256).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<WrittenEntry> written = new ArrayList<WrittenEntry>();
+    private final Set<String> names = new HashSet<String>();
+    // Deflaters hold native memory, so are reused by each thread rather than made per entry
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private boolean stored;
+    private int dosTime;
+    private long position;
+
+    public ZipWriter(File file) throws IOException {
+        out = new FileOutputStream(file);
+        channel = out.getChannel();
+        setTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Set the modification time given to entries written from now on.
+     */
+    public void setTime(long time) {
+        dosTime = toDosTime(time);
+    }
+
+    /**
+     * Set the deflate level, from 0 to 9, or -1 for the default.
+     */
+    public void setLevel(int level) {
+        Preconditions.checkArgument(level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION, "invalid compression level: %s", level);
+        this.level = level;
+    }
+
+    /**
+     * Set whether entries passed to {@link #compress} are deflated, or stored
+     * uncompressed.
+     */
+    public void setStored(boolean stored) {
+        this.stored = stored;
+    }
+
+    /**
+     * Compress the data of an entry to be written, according to the level and
+     * method of this writer. Unlike writing, this may be done from any
+     * thread.
+     */
+    public Compressed compress(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (stored) {
+            return new Compressed(ZipEntry.STORED, (int) crc.getValue(), data.length, data);
+        }
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            compressed.write(buf, 0, n);
+        }
+
+        return new Compressed(ZipEntry.DEFLATED, (int) crc.getValue(), data.length, compressed.toByteArray());
+    }
+
+    /**
+     * Compress and write an entry.
+     */
+    public void write(String name, byte[] data) throws IOException {
+        write(name, compress(data));
+    }
+
+    /**
+     * Write an entry compressed by {@link #compress}.
+     */
+    public void write(String name, Compressed data) throws IOException {
+        WrittenEntry entry = putEntry(name, data.method, data.crc, data.data.length, data.size);
+        out.write(data.data);
+        position += entry.compressedSize;
+    }
+
+    /**
+     * Write an entry by copying its stored data as is, without decompressing
+     * and compressing it again.
+     */
+    public void copy(String name, ZipReader.Entry source) throws IOException {
+        WrittenEntry entry = putEntry(name, source.getMethod(), source.getCrc(), source.getCompressedSize(), source.getSize());
+        source.transferTo(channel);
+        position += entry.compressedSize;
+    }
+
+    private WrittenEntry putEntry(String name, int method, int crc, long compressedSize, long size) throws IOException {
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+        if (compressedSize >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL) {
+            throw new ZipException("Entry too large: " + name);
+        }
+
+        WrittenEntry entry = new WrittenEntry(name.getBytes(StandardCharsets.UTF_8), method, dosTime, crc, compressedSize, size, position);
+        header.clear();
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) VERSION);
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt(crc);
+        header.putInt((int) compressedSize);
+        header.putInt((int) size);
+        header.putShort((short) entry.name.length);
+        header.putShort((short) 0);
+        header.put(entry.name);
+        writeHeader();
+
+        written.add(entry);
+        return entry;
+    }
+
+    private void writeHeader() throws IOException {
+        header.flip();
+        position += header.remaining();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Write the central directory and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            long directoryOffset = position;
+            for (WrittenEntry entry : written) {
+                boolean zip64 = entry.offset >= 0xFFFFFFFFL;
+
+                header.clear();
+                header.putInt(CENTRAL_HEADER);
+                header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+                header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+                header.putShort((short) FLAG_UTF8);
+                header.putShort((short) entry.method);
+                header.putInt(entry.dosTime);
+                header.putInt(entry.crc);
+                header.putInt((int) entry.compressedSize);
+                header.putInt((int) entry.size);
+                header.putShort((short) entry.name.length);
+                header.putShort((short) (zip64 ? 12 : 0));
+                header.putShort((short) 0); // comment
+                header.putShort((short) 0); // disk
+                header.putShort((short) 0); // internal attributes
+                header.putInt(0); // external attributes
+                header.putInt(zip64 ? -1 : (int) entry.offset);
+                header.put(entry.name);
+                if (zip64) {
+                    header.putShort((short) ZIP64_EXTRA);
+                    header.putShort((short) 8);
+                    header.putLong(entry.offset);
+                }
+                writeHeader();
+            }
+            long directorySize = position - directoryOffset;
+
+            int count = written.size();
+            boolean zip64 = count >= 0xFFFF || directoryOffset >= 0xFFFFFFFFL || directorySize >= 0xFFFFFFFFL;
+            header.clear();
+            if (zip64) {
+                long zip64End = position;
+                header.putInt(ZIP64_END_HEADER);
+                header.putLong(44);
+                header.putShort((short) VERSION_ZIP64);
+                header.putShort((short) VERSION_ZIP64);
+                header.putInt(0); // disk
+                header.putInt(0); // directory disk
+                header.putLong(count);
+                header.putLong(count);
+                header.putLong(directorySize);
+                header.putLong(directoryOffset);
+
+                header.putInt(ZIP64_LOCATOR);
+                header.putInt(0); // disk
+                header.putLong(zip64End);
+                header.putInt(1); // disks
+            }
+            header.putInt(END_HEADER);
+            header.putShort((short) 0); // disk
+            header.putShort((short) 0); // directory disk
+            header.putShort((short) Math.min(count, 0xFFFF));
+            header.putShort((short) Math.min(count, 0xFFFF));
+            header.putInt((int) Math.min(directorySize, 0xFFFFFFFFL));
+            header.putInt((int) Math.min(directoryOffset, 0xFFFFFFFFL));
+            header.putShort((short) 0); // comment
+            writeHeader();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Convert a Java time to the MS-DOS date and time used in zip headers,
+     * clamping times before 1980 as {@link ZipEntry} does.
+     */
+    private static int toDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (cal.get(Calendar.MONTH) + 1) << 21
+                | cal.get(Calendar.DAY_OF_MONTH) << 16
+                | cal.get(Calendar.HOUR_OF_DAY) << 11
+                | cal.get(Calendar.MINUTE) << 5
+                | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * The data of an entry, ready to be written.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class Compressed {
+
+        private final int method;
+        private final int crc;
+        private final long size;
+        private final byte[] data;
+    }
+
+    @RequiredArgsConstructor
+    private static class WrittenEntry {
+
+        private final byte[] name;
+        private final int method;
+        private final int dosTime;
+        private final int crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+    }
+}
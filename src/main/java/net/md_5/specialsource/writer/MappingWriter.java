@@ -58,7 +58,7 @@ public abstract class MappingWriter {
         write(out,false);
     }
 
-    public final void write(PrintWriter out,boolean noHeader) {
+    public final synchronized void write(PrintWriter out,boolean noHeader) {
         // Sort lines for easy finding
         Collections.sort(lines);
         // Format header
@@ -72,7 +72,7 @@ public abstract class MappingWriter {
         // Caller is in charge of closes the output stream
     }
 
-    protected final void addLine(String line) {
+    protected final synchronized void addLine(String line) {
         lines.add(line);
     }
 }